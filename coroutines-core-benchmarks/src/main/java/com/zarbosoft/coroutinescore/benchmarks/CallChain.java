@@ -0,0 +1,28 @@
+package com.zarbosoft.coroutinescore.benchmarks;
+
+import com.zarbosoft.coroutinescore.SuspendExecution;
+
+/**
+ * The same recursive calls as a suspendable method, which gets instrumented, and as a plain method.  Neither
+ * suspends.
+ */
+public final class CallChain {
+	private CallChain() {
+	}
+
+	public static int suspendable(final int depth, final int value) throws SuspendExecution {
+		if (depth == 0) {
+			return value;
+		}
+		final int x = value * 31 + depth;
+		return suspendable(depth - 1, x) ^ x;
+	}
+
+	public static int plain(final int depth, final int value) {
+		if (depth == 0) {
+			return value;
+		}
+		final int x = value * 31 + depth;
+		return plain(depth - 1, x) ^ x;
+	}
+}
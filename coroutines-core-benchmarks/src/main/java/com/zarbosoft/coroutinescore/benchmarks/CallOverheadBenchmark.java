@@ -0,0 +1,52 @@
+package com.zarbosoft.coroutinescore.benchmarks;
+
+import com.zarbosoft.coroutinescore.Coroutine;
+import com.zarbosoft.coroutinescore.SuspendExecution;
+import com.zarbosoft.coroutinescore.instrument.Stack;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of calling instrumented methods that don't suspend, against the same calls uninstrumented.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CallOverheadBenchmark {
+	@Param({"1", "10", "50"})
+	public int depth;
+
+	private int value;
+	private Stack oldStack;
+
+	@Setup
+	public void setup() {
+		value = 17;
+		// Act as if running in a coroutine, so only the calls are measured
+		oldStack = Stack.getStack();
+		Stack.setStack(new Stack(null, 16, 256, Coroutine.StackStrategy.CONTIGUOUS));
+	}
+
+	@TearDown
+	public void tearDown() {
+		Stack.setStack(oldStack);
+	}
+
+	@Benchmark
+	public int instrumented() {
+		try {
+			return CallChain.suspendable(depth, value);
+		} catch (final SuspendExecution e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	@Benchmark
+	public int uninstrumented() {
+		return CallChain.plain(depth, value);
+	}
+}
@@ -0,0 +1,49 @@
+package com.zarbosoft.coroutinescore.benchmarks;
+
+import com.zarbosoft.coroutinescore.Coroutine;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creating coroutines and running short ones to completion.  Run with {@code -prof gc} for allocation per operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CoroutineBenchmark {
+	@Param({"16", "256"})
+	public int stackSize;
+
+	private Finish noYield;
+	private Finish oneYield;
+
+	@Setup
+	public void setup() {
+		noYield = new Finish(1, 0);
+		oneYield = new Finish(1, 1);
+	}
+
+	@Benchmark
+	public Coroutine create() {
+		return new Coroutine(noYield, stackSize);
+	}
+
+	@Benchmark
+	public Coroutine createAndFinish() {
+		final Coroutine c = new Coroutine(noYield, stackSize);
+		c.run();
+		return c;
+	}
+
+	@Benchmark
+	public Coroutine createYieldAndFinish() {
+		final Coroutine c = new Coroutine(oneYield, stackSize);
+		c.run();
+		c.run();
+		return c;
+	}
+}
@@ -0,0 +1,32 @@
+package com.zarbosoft.coroutinescore.benchmarks;
+
+import com.zarbosoft.coroutinescore.Coroutine;
+import com.zarbosoft.coroutinescore.SuspendExecution;
+import com.zarbosoft.coroutinescore.SuspendableRunnable;
+
+/**
+ * Yields at the bottom of a fixed depth of calls, forever.  Instrumented with the default settings so suspending
+ * throws through every frame.
+ */
+public class ExceptionUnwind implements SuspendableRunnable {
+	private final int depth;
+
+	public ExceptionUnwind(final int depth) {
+		this.depth = depth;
+	}
+
+	@Override
+	public void run() throws SuspendExecution {
+		while (true) {
+			descend(depth);
+		}
+	}
+
+	private static void descend(final int depth) throws SuspendExecution {
+		if (depth == 0) {
+			Coroutine.yield();
+		} else {
+			descend(depth - 1);
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package com.zarbosoft.coroutinescore.benchmarks;
+
+import com.zarbosoft.coroutinescore.Coroutine;
+import com.zarbosoft.coroutinescore.SuspendExecution;
+import com.zarbosoft.coroutinescore.SuspendableRunnable;
+
+/**
+ * Recurses to a depth, saving a few values at each level, then finishes after yielding the given number of times at
+ * the bottom.
+ */
+public class Finish implements SuspendableRunnable {
+	private final int depth;
+	private final int yields;
+	public long result;
+
+	public Finish(final int depth, final int yields) {
+		this.depth = depth;
+		this.yields = yields;
+	}
+
+	@Override
+	public void run() throws SuspendExecution {
+		result = descend(depth, 1, "a");
+	}
+
+	private long descend(final int depth, final long l, final Object o) throws SuspendExecution {
+		if (depth == 0) {
+			for (int i = 0; i < yields; ++i) {
+				Coroutine.yield();
+			}
+			return l;
+		}
+		final int i = depth * 3;
+		final long below = descend(depth - 1, l * 7 + i, o);
+		return below + i + o.hashCode();
+	}
+}
@@ -0,0 +1,42 @@
+package com.zarbosoft.coroutinescore.benchmarks;
+
+import com.zarbosoft.coroutinescore.Coroutine;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Suspend and resume round trip through a stack of calls keeping values of every kind live, saving them in the
+ * Stack slots vs in generated frame classes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(3)
+@State(Scope.Thread)
+public class FrameLayoutBenchmark {
+	@Param({"1", "10", "50"})
+	public int depth;
+
+	private Coroutine slots;
+	private Coroutine frames;
+
+	@Setup
+	public void setup() {
+		slots = new Coroutine(new SlotState(depth));
+		slots.run();
+		frames = new Coroutine(new FrameState(depth));
+		frames.run();
+	}
+
+	@Benchmark
+	public void slots() {
+		slots.run();
+	}
+
+	@Benchmark
+	public void frames() {
+		frames.run();
+	}
+}
@@ -0,0 +1,35 @@
+package com.zarbosoft.coroutinescore.benchmarks;
+
+import com.zarbosoft.coroutinescore.Coroutine;
+import com.zarbosoft.coroutinescore.SuspendExecution;
+import com.zarbosoft.coroutinescore.SuspendableRunnable;
+
+/**
+ * Same as {@link SlotState} but instrumented with frameclasses so the values are saved in a frame object per call.
+ */
+public class FrameState implements SuspendableRunnable {
+	private final int depth;
+	public long sink;
+
+	public FrameState(final int depth) {
+		this.depth = depth;
+	}
+
+	@Override
+	public void run() throws SuspendExecution {
+		while (true) {
+			sink += descend(depth, 7, 3.5, 1.25f, "s", new Object[0]);
+		}
+	}
+
+	private static long descend(
+			final int depth, final long l, final double d, final float f, final String s, final Object[] a
+	) throws SuspendExecution {
+		if (depth == 0) {
+			Coroutine.yield();
+			return 0;
+		}
+		final long below = descend(depth - 1, l + 1, d, f, s, a);
+		return below + l + (long) d + (long) f + s.length() + a.length;
+	}
+}
@@ -0,0 +1,31 @@
+package com.zarbosoft.coroutinescore.benchmarks;
+
+import com.zarbosoft.coroutinescore.Coroutine;
+import com.zarbosoft.coroutinescore.SuspendExecution;
+import com.zarbosoft.coroutinescore.SuspendableRunnable;
+
+/**
+ * Same as {@link ExceptionUnwind} but instrumented with returnonsuspend so suspending returns through every frame.
+ */
+public class ReturnUnwind implements SuspendableRunnable {
+	private final int depth;
+
+	public ReturnUnwind(final int depth) {
+		this.depth = depth;
+	}
+
+	@Override
+	public void run() throws SuspendExecution {
+		while (true) {
+			descend(depth);
+		}
+	}
+
+	private static void descend(final int depth) throws SuspendExecution {
+		if (depth == 0) {
+			Coroutine.yield();
+		} else {
+			descend(depth - 1);
+		}
+	}
+}
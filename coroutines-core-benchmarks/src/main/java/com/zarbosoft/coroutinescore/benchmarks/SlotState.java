@@ -0,0 +1,36 @@
+package com.zarbosoft.coroutinescore.benchmarks;
+
+import com.zarbosoft.coroutinescore.Coroutine;
+import com.zarbosoft.coroutinescore.SuspendExecution;
+import com.zarbosoft.coroutinescore.SuspendableRunnable;
+
+/**
+ * Yields at the bottom of a fixed depth of calls that each keep values of every kind live across the call, forever.
+ * Instrumented with the default settings so the values are saved in the Stack slots.
+ */
+public class SlotState implements SuspendableRunnable {
+	private final int depth;
+	public long sink;
+
+	public SlotState(final int depth) {
+		this.depth = depth;
+	}
+
+	@Override
+	public void run() throws SuspendExecution {
+		while (true) {
+			sink += descend(depth, 7, 3.5, 1.25f, "s", new Object[0]);
+		}
+	}
+
+	private static long descend(
+			final int depth, final long l, final double d, final float f, final String s, final Object[] a
+	) throws SuspendExecution {
+		if (depth == 0) {
+			Coroutine.yield();
+			return 0;
+		}
+		final long below = descend(depth - 1, l + 1, d, f, s, a);
+		return below + l + (long) d + (long) f + s.length() + a.length;
+	}
+}
@@ -0,0 +1,47 @@
+package com.zarbosoft.coroutinescore.benchmarks;
+
+import com.zarbosoft.coroutinescore.Coroutine;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Running a coroutine whose calls outgrow its initial stack, so the stack grows on every run.  Run with {@code -prof
+ * gc} for the allocation caused by growing.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StackGrowthBenchmark {
+	@Param({"10", "100", "1000"})
+	public int depth;
+
+	@Param({"CONTIGUOUS", "SEGMENTED"})
+	public Coroutine.StackStrategy strategy;
+
+	private Finish runnable;
+
+	@Setup
+	public void setup() {
+		runnable = new Finish(depth, 1);
+	}
+
+	@Benchmark
+	public Coroutine grow() {
+		final Coroutine c = new Coroutine(runnable, 4, strategy);
+		c.run();
+		c.run();
+		return c;
+	}
+
+	@Benchmark
+	public Coroutine presized() {
+		final Coroutine c = new Coroutine(runnable, depth * 4, strategy);
+		c.run();
+		c.run();
+		return c;
+	}
+}
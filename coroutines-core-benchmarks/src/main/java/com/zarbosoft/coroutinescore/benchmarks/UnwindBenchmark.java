@@ -0,0 +1,41 @@
+package com.zarbosoft.coroutinescore.benchmarks;
+
+import com.zarbosoft.coroutinescore.Coroutine;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Suspend and resume round trip through a stack of suspendable calls, unwinding by exception vs by return.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UnwindBenchmark {
+	@Param({"10", "50", "200"})
+	public int depth;
+
+	private Coroutine exception;
+	private Coroutine returning;
+
+	@Setup
+	public void setup() {
+		exception = new Coroutine(new ExceptionUnwind(depth));
+		exception.run();
+		returning = new Coroutine(new ReturnUnwind(depth));
+		returning.run();
+	}
+
+	@Benchmark
+	public void exception() {
+		exception.run();
+	}
+
+	@Benchmark
+	public void returnOnSuspend() {
+		returning.run();
+	}
+}
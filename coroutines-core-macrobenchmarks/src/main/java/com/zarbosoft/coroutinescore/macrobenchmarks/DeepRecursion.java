@@ -0,0 +1,45 @@
+package com.zarbosoft.coroutinescore.macrobenchmarks;
+
+import com.zarbosoft.coroutinescore.Coroutine;
+import com.zarbosoft.coroutinescore.SuspendExecution;
+
+/**
+ * A coroutine that yields repeatedly at the bottom of deep recursion, so every resume restores every frame.  An
+ * operation is a resume.
+ */
+public class DeepRecursion implements Scenario {
+	private final int depth;
+	private final int yields;
+
+	public DeepRecursion(final int depth, final int yields) {
+		this.depth = depth;
+		this.yields = yields;
+	}
+
+	@Override
+	public String name() {
+		return "deep-recursion";
+	}
+
+	@Override
+	public long run(final Recorder recorder) {
+		final Coroutine coroutine = new Coroutine(() -> descend(depth));
+		long resumes = 0;
+		do {
+			recorder.resume(coroutine);
+			resumes += 1;
+		} while (coroutine.getState() != Coroutine.State.FINISHED);
+		return resumes;
+	}
+
+	private long descend(final int remaining) throws SuspendExecution {
+		if (remaining == 0) {
+			for (int i = 0; i < yields; ++i) {
+				Coroutine.yield();
+			}
+			return 0;
+		}
+		final long below = descend(remaining - 1);
+		return below + remaining;
+	}
+}
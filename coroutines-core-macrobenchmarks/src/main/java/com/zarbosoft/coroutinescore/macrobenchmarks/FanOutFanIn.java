@@ -0,0 +1,59 @@
+package com.zarbosoft.coroutinescore.macrobenchmarks;
+
+import com.zarbosoft.coroutinescore.Coroutine;
+
+/**
+ * Starts many short coroutines that each yield a few times, runs them round robin until they all finish, then
+ * combines their results.
+ */
+public class FanOutFanIn implements Scenario {
+	private final int tasks;
+	private final int yields;
+
+	public FanOutFanIn(final int tasks, final int yields) {
+		this.tasks = tasks;
+		this.yields = yields;
+	}
+
+	@Override
+	public String name() {
+		return "fan-out-fan-in";
+	}
+
+	@Override
+	public long run(final Recorder recorder) {
+		final long[] results = new long[tasks];
+		Coroutine[] running = new Coroutine[tasks];
+		for (int i = 0; i < tasks; ++i) {
+			final int id = i;
+			running[i] = new Coroutine(() -> {
+				long x = id;
+				for (int j = 0; j < yields; ++j) {
+					x = x * 31 + j;
+					Coroutine.yield();
+				}
+				results[id] = x;
+			});
+		}
+		int count = tasks;
+		while (count > 0) {
+			int kept = 0;
+			for (int i = 0; i < count; ++i) {
+				final Coroutine coroutine = running[i];
+				recorder.resume(coroutine);
+				if (coroutine.getState() != Coroutine.State.FINISHED) {
+					running[kept++] = coroutine;
+				}
+			}
+			count = kept;
+		}
+		long sum = 0;
+		for (final long result : results) {
+			sum += result;
+		}
+		if (sum == 0) {
+			throw new IllegalStateException();
+		}
+		return tasks;
+	}
+}
@@ -0,0 +1,221 @@
+package com.zarbosoft.coroutinescore.macrobenchmarks;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.HotSpotDiagnosticMXBean;
+import com.zarbosoft.coroutinescore.Coroutine;
+import com.zarbosoft.coroutinescore.SuspendExecution;
+import com.zarbosoft.coroutinescore.SuspendableRunnable;
+import com.zarbosoft.coroutinescore.instrument.Stack;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the heap retained by suspended coroutines at scale, and GC pauses while creating them.
+ * <p>
+ * Arguments: {@code [-counts N,N..] [-depths N,N..] [-strategy CONTIGUOUS|SEGMENTED|OFF_HEAP] [-out FILE]}.  Writes
+ * one CSV row per count and depth, with sizes in bytes per coroutine.  The heap has to be large enough for the
+ * largest count, 10,000,000 coroutines need around 8GB.
+ */
+public class Footprint {
+	private static final class Park implements SuspendableRunnable {
+		private final int depth;
+
+		Park(final int depth) {
+			this.depth = depth;
+		}
+
+		@Override
+		public void run() throws SuspendExecution {
+			descend(depth);
+		}
+
+		private static void descend(final int remaining) throws SuspendExecution {
+			if (remaining <= 1) {
+				Coroutine.yield();
+			} else {
+				descend(remaining - 1);
+			}
+		}
+	}
+
+	/**
+	 * Collects pauses reported by GC notifications
+	 */
+	private static final class Pauses {
+		long count;
+		long totalMillis;
+		long maxMillis;
+
+		synchronized void record(final long millis) {
+			count += 1;
+			totalMillis += millis;
+			maxMillis = Math.max(maxMillis, millis);
+		}
+
+		synchronized void clear() {
+			count = 0;
+			totalMillis = 0;
+			maxMillis = 0;
+		}
+	}
+
+	public static void main(final String[] args) throws Exception {
+		List<Integer> counts = parseList("1000000,5000000,10000000");
+		List<Integer> depths = parseList("1,8,32");
+		Coroutine.StackStrategy strategy = Coroutine.StackStrategy.CONTIGUOUS;
+		String out = "footprint.csv";
+		for (int i = 0; i < args.length; ++i) {
+			switch (args[i]) {
+				case "-counts":
+					counts = parseList(args[++i]);
+					break;
+				case "-depths":
+					depths = parseList(args[++i]);
+					break;
+				case "-strategy":
+					strategy = Coroutine.StackStrategy.valueOf(args[++i]);
+					break;
+				case "-out":
+					out = args[++i];
+					break;
+				default:
+					throw new IllegalArgumentException(args[i]);
+			}
+		}
+
+		final Pauses pauses = new Pauses();
+		for (final GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+			((NotificationEmitter) bean).addNotificationListener((notification, handback) -> {
+				if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+					return;
+				}
+				pauses.record(GarbageCollectionNotificationInfo
+						.from((CompositeData) notification.getUserData())
+						.getGcInfo()
+						.getDuration());
+			}, null, null);
+		}
+
+		final Field stackField = Coroutine.class.getDeclaredField("stack");
+		stackField.setAccessible(true);
+		final Field methodField = Stack.class.getDeclaredField("method");
+		methodField.setAccessible(true);
+		final int referenceSize = ManagementFactory
+				.getPlatformMXBean(HotSpotDiagnosticMXBean.class)
+				.getVMOption("UseCompressedOops")
+				.getValue()
+				.equals("true") ? 4 : 8;
+
+		try (PrintWriter writer = new PrintWriter(new FileWriter(out))) {
+			final String header = "strategy,count,depth,retained,method,dataLong,dataInt,dataObject,other," +
+					"gcCount,gcMillis,gcMaxMillis,fullGcMillis";
+			writer.println(header);
+			System.out.println(header);
+			for (final int count : counts) {
+				for (final int depth : depths) {
+					Coroutine[] coroutines = new Coroutine[count];
+					final Park park = new Park(depth);
+					final long before = settledHeap();
+					pauses.clear();
+					for (int i = 0; i < count; ++i) {
+						final Coroutine coroutine = new Coroutine(park, 16, strategy);
+						coroutine.run();
+						coroutines[i] = coroutine;
+					}
+					final long gcCount;
+					final long gcMillis;
+					final long gcMaxMillis;
+					synchronized (pauses) {
+						gcCount = pauses.count;
+						gcMillis = pauses.totalMillis;
+						gcMaxMillis = pauses.maxMillis;
+					}
+					final long fullStart = System.nanoTime();
+					System.gc();
+					final long fullGcMillis = (System.nanoTime() - fullStart) / 1_000_000;
+					final long after = settledHeap();
+
+					long method = 0;
+					long dataLong = 0;
+					long dataInt = 0;
+					long dataObject = 0;
+					for (final Coroutine coroutine : coroutines) {
+						final Stack stack = (Stack) stackField.get(coroutine);
+						method += arrayBytes(((int[]) methodField.get(stack)).length, 4);
+						if (stack.dataLong != null) {
+							dataLong += arrayBytes(stack.dataLong.length, 8);
+						}
+						if (stack.dataInt != null) {
+							dataInt += arrayBytes(stack.dataInt.length, 4);
+						}
+						dataObject += arrayBytes(stack.dataObject.length, referenceSize);
+					}
+					final double retained = (double) (after - before) / count;
+					final String row = String.format("%s,%d,%d,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f,%d,%d,%d,%d",
+							strategy,
+							count,
+							depth,
+							retained,
+							(double) method / count,
+							(double) dataLong / count,
+							(double) dataInt / count,
+							(double) dataObject / count,
+							retained - (double) (method + dataLong + dataInt + dataObject) / count,
+							gcCount,
+							gcMillis,
+							gcMaxMillis,
+							fullGcMillis
+					);
+					writer.println(row);
+					writer.flush();
+					System.out.println(row);
+					coroutines = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Collects until the used heap stops changing much.  Runs three full collections.
+	 *
+	 * @return the used heap
+	 * @throws InterruptedException
+	 */
+	private static long settledHeap() throws InterruptedException {
+		long used = 0;
+		for (int i = 0; i < 3; ++i) {
+			System.gc();
+			Thread.sleep(100);
+			used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+		}
+		return used;
+	}
+
+	/**
+	 * The shallow size of an array with a 16 byte header, padded to 8 bytes.
+	 *
+	 * @param length
+	 * @param elementSize
+	 * @return
+	 */
+	private static long arrayBytes(final int length, final int elementSize) {
+		return (16L + (long) length * elementSize + 7) & ~7L;
+	}
+
+	private static List<Integer> parseList(final String text) {
+		final List<Integer> out = new ArrayList<>();
+		for (final String part : text.split(",")) {
+			out.add(Integer.parseInt(part.trim()));
+		}
+		return out;
+	}
+}
@@ -0,0 +1,285 @@
+package com.zarbosoft.coroutinescore.macrobenchmarks;
+
+import com.zarbosoft.coroutinescore.instrument.DBClassWriter;
+import com.zarbosoft.coroutinescore.instrument.InstrumentClass;
+import com.zarbosoft.coroutinescore.instrument.InstrumentationTimings;
+import com.zarbosoft.coroutinescore.instrument.MethodDatabase;
+import org.objectweb.asm.ClassReader;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs the instrumentation pipeline the way the ant task does over a corpus of class files and reports the classes
+ * per second, the time in each phase and how much the bytecode grows.
+ * <p>
+ * Arguments: {@code [-warmup N] [-runs N] [-classes N] [-methods N] [jar or directory...]}.  The corpus is the
+ * uninstrumented classes in the given jars and directories plus generated suspendable classes, which are compiled
+ * with the system Java compiler so this needs a JDK.  Classes already instrumented are only scanned.
+ */
+public class InstrumentationThroughput {
+	public static void main(final String[] args) throws Exception {
+		int warmup = 5;
+		int runs = 10;
+		int classes = 200;
+		int methods = 8;
+		final List<String> inputs = new ArrayList<>();
+		for (int i = 0; i < args.length; ++i) {
+			switch (args[i]) {
+				case "-warmup":
+					warmup = Integer.parseInt(args[++i]);
+					break;
+				case "-runs":
+					runs = Integer.parseInt(args[++i]);
+					break;
+				case "-classes":
+					classes = Integer.parseInt(args[++i]);
+					break;
+				case "-methods":
+					methods = Integer.parseInt(args[++i]);
+					break;
+				default:
+					inputs.add(args[i]);
+			}
+		}
+
+		final Path corpus = Files.createTempDirectory("instrumentation-corpus");
+		try {
+			for (final String input : inputs) {
+				final File file = new File(input);
+				if (file.isDirectory()) {
+					copyClasses(file.toPath(), corpus);
+				} else {
+					extractClasses(file, corpus);
+				}
+			}
+			if (classes > 0) {
+				generate(corpus, classes, methods);
+			}
+			final List<File> files;
+			try (Stream<Path> walk = Files.walk(corpus)) {
+				files = walk
+						.filter(p -> p.toString().endsWith(".class"))
+						.map(Path::toFile)
+						.sorted()
+						.collect(Collectors.toList());
+			}
+
+			final InstrumentationTimings timings = new InstrumentationTimings();
+			long elapsed = 0;
+			Result result = null;
+			try (URLClassLoader loader = new URLClassLoader(new URL[] {corpus.toUri().toURL()},
+					InstrumentationThroughput.class.getClassLoader()
+			)) {
+				for (int i = 0; i < warmup; ++i) {
+					instrument(loader, files, new InstrumentationTimings());
+				}
+				for (int i = 0; i < runs; ++i) {
+					final long start = System.nanoTime();
+					result = instrument(loader, files, timings);
+					elapsed += System.nanoTime() - start;
+				}
+			}
+
+			System.out.format("%d classes, %d instrumented\n", files.size(), result.instrumented);
+			System.out.format("%.0f classes/s, %.0f instrumented classes/s\n",
+					files.size() * runs * 1e9 / elapsed,
+					result.instrumented * runs * 1e9 / elapsed
+			);
+			long phases = 0;
+			for (final InstrumentationTimings.Phase phase : InstrumentationTimings.Phase.values()) {
+				final long nanos = timings.getNanos(phase);
+				phases += nanos;
+				printPhase(phase.name().toLowerCase(), nanos, runs, elapsed);
+			}
+			printPhase("other", elapsed - phases, runs, elapsed);
+			System.out.format("%d bytes in, %d bytes out, %.1f%% growth\n",
+					result.bytesIn,
+					result.bytesOut,
+					(result.bytesOut - result.bytesIn) * 100.0 / result.bytesIn
+			);
+		} finally {
+			delete(corpus);
+		}
+	}
+
+	private static final class Result {
+		int instrumented;
+		long bytesIn;
+		long bytesOut;
+	}
+
+	/**
+	 * Same as InstrumentationTask without writing the classes back.
+	 *
+	 * @param loader
+	 * @param files
+	 * @param timings
+	 * @return
+	 * @throws IOException
+	 */
+	private static Result instrument(
+			final ClassLoader loader, final List<File> files, final InstrumentationTimings timings
+	) throws IOException {
+		final MethodDatabase db = new MethodDatabase(loader);
+		db.setTimings(timings);
+		for (final File file : files) {
+			db.checkClass(file);
+		}
+		final Result result = new Result();
+		for (final File file : db.getWorkList()) {
+			final byte[] in = Files.readAllBytes(file.toPath());
+			final ClassReader r = new ClassReader(in);
+			final DBClassWriter cw = new DBClassWriter(db, r);
+			r.accept(new InstrumentClass(cw, db, false), ClassReader.SKIP_FRAMES);
+			final byte[] out = cw.toByteArray();
+			result.instrumented += 1;
+			result.bytesIn += in.length;
+			result.bytesOut += out.length;
+		}
+		return result;
+	}
+
+	private static void printPhase(final String name, final long nanos, final int runs, final long elapsed) {
+		System.out.format("%-16s %10.2f ms/run %6.1f%%\n", name, nanos / 1e6 / runs, nanos * 100.0 / elapsed);
+	}
+
+	private static void copyClasses(final Path from, final Path to) throws IOException {
+		try (Stream<Path> walk = Files.walk(from)) {
+			for (final Path path : (Iterable<Path>) walk.filter(p -> p.toString().endsWith(".class"))::iterator) {
+				final Path dest = to.resolve(from.relativize(path).toString());
+				Files.createDirectories(dest.getParent());
+				Files.copy(path, dest, StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+	}
+
+	private static void extractClasses(final File jar, final Path to) throws IOException {
+		try (JarFile file = new JarFile(jar)) {
+			final Enumeration<JarEntry> entries = file.entries();
+			while (entries.hasMoreElements()) {
+				final JarEntry entry = entries.nextElement();
+				final String name = entry.getName();
+				if (!name.endsWith(".class") || name.startsWith("META-INF/") || name.endsWith("module-info.class")) {
+					continue;
+				}
+				final Path dest = to.resolve(name);
+				Files.createDirectories(dest.getParent());
+				try (InputStream in = file.getInputStream(entry)) {
+					Files.copy(in, dest, StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Deletes a directory and everything in it.
+	 *
+	 * @param dir
+	 * @throws IOException
+	 */
+	private static void delete(final Path dir) throws IOException {
+		final List<Path> paths;
+		try (Stream<Path> walk = Files.walk(dir)) {
+			paths = walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+		}
+		for (final Path path : paths) {
+			Files.delete(path);
+		}
+	}
+
+	/**
+	 * Writes and compiles classes whose suspendable methods call each other with locals of each type live across
+	 * the calls, inside loops and try blocks.
+	 *
+	 * @param to
+	 * @param classes
+	 * @param methods
+	 * @throws IOException
+	 */
+	private static void generate(final Path to, final int classes, final int methods) throws IOException {
+		final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		if (compiler == null) {
+			throw new IllegalStateException("Generating classes needs a JDK");
+		}
+		final Path sources = Files.createTempDirectory("instrumentation-sources");
+		try {
+			compile(compiler, to, sources, classes, methods);
+		} finally {
+			delete(sources);
+		}
+	}
+
+	private static void compile(
+			final JavaCompiler compiler, final Path to, final Path sources, final int classes, final int methods
+	) throws IOException {
+		final List<String> compilerArgs = new ArrayList<>();
+		compilerArgs.add("-d");
+		compilerArgs.add(to.toString());
+		compilerArgs.add("-cp");
+		compilerArgs.add(System.getProperty("java.class.path"));
+		for (int c = 0; c < classes; ++c) {
+			final Path source = sources.resolve("Synthetic" + c + ".java");
+			try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(source))) {
+				out.println("package synthetic;");
+				out.println("import com.zarbosoft.coroutinescore.Coroutine;");
+				out.println("import com.zarbosoft.coroutinescore.SuspendExecution;");
+				out.format("public class Synthetic%d {\n", c);
+				out.println("  private long total;");
+				out.println("  private static int leaf(final int x) throws SuspendExecution {");
+				out.println("    if (x < 0) Coroutine.yield();");
+				out.println("    return x + 1;");
+				out.println("  }");
+				for (int m = 0; m < methods; ++m) {
+					final String callee = m == 0 ? "leaf(k)" : String.format("m%d(k, s, d * 0.5)", m - 1);
+					out.format("  public int m%d(final int a, final String s, final double d) throws " +
+							"SuspendExecution {\n", m);
+					out.println("    int x = a;");
+					out.println("    long l = a * 3L;");
+					out.println("    Object o = s;");
+					out.println("    final StringBuilder b = new StringBuilder(s);");
+					out.println("    for (int k = 0; k < a; ++k) {");
+					out.format("      x += %s;\n", callee);
+					out.println("      if ((k & 1) == 0) {");
+					out.println("        l += leaf((int) l) * (long) d;");
+					out.println("        o = b.append(x).toString();");
+					out.println("      }");
+					out.println("      total += x;");
+					out.println("    }");
+					out.println("    try {");
+					out.println("      x += leaf(x);");
+					out.println("    } catch (final IllegalStateException e) {");
+					out.println("      x = e.getMessage().length();");
+					out.println("    }");
+					out.println("    return x + (int) l + o.hashCode() + (int) d;");
+					out.println("  }");
+				}
+				out.println("  public String describe() {");
+				out.println("    return getClass().getName() + total;");
+				out.println("  }");
+				out.println("}");
+			}
+			compilerArgs.add(source.toString());
+		}
+		if (compiler.run(null, null, null, compilerArgs.toArray(new String[0])) != 0) {
+			throw new IllegalStateException("Compiling generated classes failed");
+		}
+	}
+}
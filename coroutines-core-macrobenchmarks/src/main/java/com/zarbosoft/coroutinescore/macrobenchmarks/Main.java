@@ -0,0 +1,84 @@
+package com.zarbosoft.coroutinescore.macrobenchmarks;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the scenarios and prints throughput, resume latency percentiles and GC time for each.
+ * <p>
+ * Arguments: {@code [-warmup N] [-runs N] [scenario...]}, all scenarios if none are named.
+ */
+public class Main {
+	public static void main(final String[] args) {
+		int warmup = 3;
+		int runs = 5;
+		final List<String> names = new ArrayList<>();
+		for (int i = 0; i < args.length; ++i) {
+			switch (args[i]) {
+				case "-warmup":
+					warmup = Integer.parseInt(args[++i]);
+					break;
+				case "-runs":
+					runs = Integer.parseInt(args[++i]);
+					break;
+				default:
+					names.add(args[i]);
+			}
+		}
+
+		final List<Scenario> scenarios = new ArrayList<>();
+		for (final Scenario scenario : Arrays.asList(
+				new PingPong(1_000_000),
+				new Ring(10_000, 1_000_000),
+				new Pipeline(1_000_000),
+				new FanOutFanIn(100_000, 3),
+				new DeepRecursion(1_000, 10_000)
+		)) {
+			if (names.isEmpty() || names.contains(scenario.name())) {
+				scenarios.add(scenario);
+			}
+		}
+
+		System.out.format("%-16s %14s %10s %10s %10s %10s\n",
+				"scenario",
+				"ops/s",
+				"p50 ns",
+				"p99 ns",
+				"p999 ns",
+				"gc ms"
+		);
+		for (final Scenario scenario : scenarios) {
+			for (int i = 0; i < warmup; ++i) {
+				scenario.run(new Recorder());
+			}
+			final Recorder recorder = new Recorder();
+			final long gcStart = gcMillis();
+			long ops = 0;
+			final long start = System.nanoTime();
+			for (int i = 0; i < runs; ++i) {
+				ops += scenario.run(recorder);
+			}
+			final long elapsed = System.nanoTime() - start;
+			final long gc = gcMillis() - gcStart;
+			System.out.format("%-16s %14.0f %10d %10d %10d %10d\n",
+					scenario.name(),
+					ops * 1e9 / elapsed,
+					recorder.percentile(0.5),
+					recorder.percentile(0.99),
+					recorder.percentile(0.999),
+					gc
+			);
+		}
+	}
+
+	private static long gcMillis() {
+		long total = 0;
+		for (final GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+			total += Math.max(0, bean.getCollectionTime());
+		}
+		return total;
+	}
+}
@@ -0,0 +1,42 @@
+package com.zarbosoft.coroutinescore.macrobenchmarks;
+
+import com.zarbosoft.coroutinescore.Coroutine;
+
+/**
+ * Two coroutines taking turns updating a shared value.
+ */
+public class PingPong implements Scenario {
+	private final int exchanges;
+	private long ball;
+
+	public PingPong(final int exchanges) {
+		this.exchanges = exchanges;
+	}
+
+	@Override
+	public String name() {
+		return "ping-pong";
+	}
+
+	@Override
+	public long run(final Recorder recorder) {
+		ball = 0;
+		final Coroutine ping = new Coroutine(() -> {
+			while (true) {
+				ball += 1;
+				Coroutine.yield();
+			}
+		});
+		final Coroutine pong = new Coroutine(() -> {
+			while (true) {
+				ball ^= ball << 1;
+				Coroutine.yield();
+			}
+		});
+		for (int i = 0; i < exchanges; ++i) {
+			recorder.resume(ping);
+			recorder.resume(pong);
+		}
+		return exchanges * 2L;
+	}
+}
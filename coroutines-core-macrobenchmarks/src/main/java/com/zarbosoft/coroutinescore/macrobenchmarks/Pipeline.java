@@ -0,0 +1,64 @@
+package com.zarbosoft.coroutinescore.macrobenchmarks;
+
+import com.zarbosoft.coroutinescore.Coroutine;
+
+/**
+ * Generators that pull from the generator before them: numbers, filtered, then transformed.  Only pulls from the last
+ * generator are recorded.
+ */
+public class Pipeline implements Scenario {
+	private static final class Generator {
+		Coroutine coroutine;
+		long value;
+	}
+
+	private final int items;
+
+	public Pipeline(final int items) {
+		this.items = items;
+	}
+
+	@Override
+	public String name() {
+		return "pipeline";
+	}
+
+	@Override
+	public long run(final Recorder recorder) {
+		final Generator source = new Generator();
+		source.coroutine = new Coroutine(() -> {
+			long next = 0;
+			while (true) {
+				source.value = next++;
+				Coroutine.yield();
+			}
+		});
+		final Generator filter = new Generator();
+		filter.coroutine = new Coroutine(() -> {
+			while (true) {
+				do {
+					source.coroutine.run();
+				} while (source.value % 3 == 0);
+				filter.value = source.value;
+				Coroutine.yield();
+			}
+		});
+		final Generator map = new Generator();
+		map.coroutine = new Coroutine(() -> {
+			while (true) {
+				filter.coroutine.run();
+				map.value = filter.value * filter.value;
+				Coroutine.yield();
+			}
+		});
+		long sum = 0;
+		for (int i = 0; i < items; ++i) {
+			recorder.resume(map.coroutine);
+			sum += map.value;
+		}
+		if (sum == 0) {
+			throw new IllegalStateException();
+		}
+		return items;
+	}
+}
@@ -0,0 +1,76 @@
+package com.zarbosoft.coroutinescore.macrobenchmarks;
+
+import com.zarbosoft.coroutinescore.Coroutine;
+
+/**
+ * Times resumes into a histogram with buckets that are within about 3% of the values they hold, so any number of
+ * resumes can be recorded in fixed space.
+ */
+public final class Recorder {
+	private static final int SUB_BITS = 5;
+	private static final int SUB_MASK = (1 << SUB_BITS) - 1;
+
+	private final long[] counts = new long[64 << SUB_BITS];
+	private long total;
+
+	/**
+	 * Runs the coroutine and records how long it took to return.
+	 *
+	 * @param coroutine
+	 */
+	public void resume(final Coroutine coroutine) {
+		final long start = System.nanoTime();
+		coroutine.run();
+		record(System.nanoTime() - start);
+	}
+
+	public void record(final long nanos) {
+		counts[bucket(nanos)] += 1;
+		total += 1;
+	}
+
+	public long getTotal() {
+		return total;
+	}
+
+	/**
+	 * @param fraction from 0 to 1
+	 * @return the lowest value in the bucket containing the value at the fraction of the recorded values, in
+	 * nanoseconds
+	 */
+	public long percentile(final double fraction) {
+		final long target = Math.max(1, (long) Math.ceil(fraction * total));
+		long seen = 0;
+		for (int i = 0; i < counts.length; ++i) {
+			seen += counts[i];
+			if (seen >= target) {
+				return lowest(i);
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Values below 2^SUB_BITS get a bucket each, above that each power of two is split into 2^SUB_BITS buckets.
+	 *
+	 * @param value
+	 * @return
+	 */
+	private static int bucket(final long value) {
+		if (value < (1 << SUB_BITS)) {
+			return (int) Math.max(0, value);
+		}
+		final int exponent = 63 - Long.numberOfLeadingZeros(value);
+		final int sub = (int) (value >>> (exponent - SUB_BITS)) & SUB_MASK;
+		return ((exponent - SUB_BITS + 1) << SUB_BITS) + sub;
+	}
+
+	private static long lowest(final int bucket) {
+		final int shift = bucket >>> SUB_BITS;
+		final int sub = bucket & SUB_MASK;
+		if (shift == 0) {
+			return sub;
+		}
+		return (long) ((1 << SUB_BITS) | sub) << (shift - 1);
+	}
+}
@@ -0,0 +1,44 @@
+package com.zarbosoft.coroutinescore.macrobenchmarks;
+
+import com.zarbosoft.coroutinescore.Coroutine;
+
+/**
+ * A ring of coroutines passing a token to the next one around the ring.
+ */
+public class Ring implements Scenario {
+	private final int size;
+	private final int passes;
+	private int holder;
+
+	public Ring(final int size, final int passes) {
+		this.size = size;
+		this.passes = passes;
+	}
+
+	@Override
+	public String name() {
+		return "ring";
+	}
+
+	@Override
+	public long run(final Recorder recorder) {
+		final Coroutine[] ring = new Coroutine[size];
+		for (int i = 0; i < size; ++i) {
+			final int id = i;
+			ring[i] = new Coroutine(() -> {
+				while (true) {
+					if (holder != id) {
+						throw new IllegalStateException("Resumed without the token");
+					}
+					holder = (id + 1) % size;
+					Coroutine.yield();
+				}
+			});
+		}
+		holder = 0;
+		for (int i = 0; i < passes; ++i) {
+			recorder.resume(ring[holder]);
+		}
+		return passes;
+	}
+}
@@ -0,0 +1,16 @@
+package com.zarbosoft.coroutinescore.macrobenchmarks;
+
+/**
+ * A workload driven with Coroutine.run() and Coroutine.yield().
+ */
+public interface Scenario {
+	String name();
+
+	/**
+	 * Runs the workload once from scratch, resuming coroutines through the recorder.
+	 *
+	 * @param recorder
+	 * @return the number of operations done, for throughput
+	 */
+	long run(Recorder recorder);
+}
@@ -80,10 +80,59 @@ public class Coroutine implements Runnable, Serializable {
 		FINISHED
 	}
 
+	public enum StackStrategy {
+		/**
+		 * Each lane of the data stack is a single array which is copied into an array twice the size when it
+		 * runs out of space
+		 */
+		CONTIGUOUS,
+		/**
+		 * Each lane of the data stack is a list of arrays - when the current array runs out of space the next
+		 * array is used, so growing never copies saved state
+		 */
+		SEGMENTED,
+		/**
+		 * Like CONTIGUOUS, but while the coroutine is suspended the long and int lanes are kept in shared direct
+		 * memory slabs and their arrays are reused by the next coroutine on the thread.  A coroutine dropped while
+		 * suspended keeps its part of the slabs - {@link #close()} coroutines that won't be resumed.
+		 */
+		OFF_HEAP
+	}
+
+	/**
+	 * The SuspendableRunnable the coroutine was created with.
+	 *
+	 * @deprecated a coroutine reused with {@link #reset(SuspendableRunnable)} runs a different runnable - use
+	 * {@link #getRunnable()}, which returns the one it runs now
+	 */
+	@Deprecated
 	public final SuspendableRunnable runnable;
-	private final Stack stack;
+	/**
+	 * The SuspendableRunnable run() runs, replaced by {@link #reset(SuspendableRunnable)}
+	 */
+	private SuspendableRunnable current;
+	private final int stackSize;
+	private final int methodSize;
+	private final StackStrategy strategy;
+	/**
+	 * Not serialized - deserialized coroutines stop teaching the profile
+	 */
+	private final transient StackSizeProfile profile;
+	private final transient StackArena arena;
+	private int arenaChunk = -1;
+	/**
+	 * Allocated when the coroutine first suspends - until then it runs on a scratch stack shared with other
+	 * coroutines on the same thread
+	 */
+	private Stack stack;
 	private State state;
 
+	/**
+	 * Internal - DO NOT USE !  Whether a {@link com.zarbosoft.coroutinescore.scheduler.Scheduler} has the coroutine
+	 * queued or running.
+	 */
+	public transient volatile int scheduled;
+
 	/**
 	 * Call from within an executing coroutine to suspend execution at that point - may not be called from outside
 	 * the coroutine.
@@ -115,11 +164,82 @@ public class Coroutine implements Runnable, Serializable {
 	 * @param stackSize the initial stack size for the data stack
 	 */
 	public Coroutine(final SuspendableRunnable runnable, final int stackSize) {
+		this(runnable, stackSize, StackStrategy.CONTIGUOUS);
+	}
+
+	/**
+	 * Creates a new Coroutine from the given SuspendableRunnable. A SuspendableRunnable
+	 * can be used in several Coroutines at the same time - but then the normal
+	 * multi threading rules apply to the member state.
+	 *
+	 * @param runnable  the SuspendableRunnable for the Coroutine.
+	 * @param stackSize the initial stack size for the data stack
+	 * @param strategy  how the data stack grows
+	 */
+	public Coroutine(final SuspendableRunnable runnable, final int stackSize, final StackStrategy strategy) {
+		this(runnable, stackSize, 0, strategy, null, null);
+	}
+
+	/**
+	 * Creates a new Coroutine from the given SuspendableRunnable, with the initial stack size the profile learned
+	 * for the runnable's class.  The profile learns from this coroutine in turn.
+	 *
+	 * @param runnable the SuspendableRunnable for the Coroutine.
+	 * @param profile  the stack sizes for runnable classes
+	 */
+	public Coroutine(final SuspendableRunnable runnable, final StackSizeProfile profile) {
+		this(runnable,
+				profile.getStackSize(runnable.getClass()),
+				profile.getMethodSize(runnable.getClass()),
+				StackStrategy.CONTIGUOUS,
+				profile,
+				null
+		);
+	}
+
+	/**
+	 * Creates a new Coroutine from the given SuspendableRunnable, with its stack in a chunk of the arena's slabs
+	 * while it runs.  Coroutines using an arena can't be serialized.
+	 * <p>
+	 * The chunk goes back to the arena when the coroutine finishes.  A coroutine that's dropped while suspended
+	 * keeps its chunk, and the objects it saved stay reachable from the arena - {@link #close()} coroutines that
+	 * won't be resumed.
+	 *
+	 * @param runnable the SuspendableRunnable for the Coroutine.
+	 * @param arena    the slabs to take the stack from
+	 */
+	public Coroutine(final SuspendableRunnable runnable, final StackArena arena) {
+		this(runnable, arena.getChunkSize(), 0, StackStrategy.CONTIGUOUS, null, arena);
+	}
+
+	private Coroutine(
+			final SuspendableRunnable runnable,
+			final int stackSize,
+			final int methodSize,
+			final StackStrategy strategy,
+			final StackSizeProfile profile,
+			final StackArena arena
+	) {
+		if (stackSize <= 0) {
+			throw new IllegalArgumentException("stackSize");
+		}
 		this.runnable = runnable;
-		this.stack = new Stack(this, stackSize);
+		this.current = runnable;
+		this.stackSize = stackSize;
+		this.methodSize = methodSize;
+		this.strategy = strategy;
+		this.profile = profile;
+		this.arena = arena;
 		this.state = State.NEW;
 	}
 
+	/**
+	 * @return the SuspendableRunnable the coroutine runs, or null if it's finished and was released to a pool
+	 */
+	public SuspendableRunnable getRunnable() {
+		return current;
+	}
+
 	/**
 	 * Returns the active Coroutine on this thread or NULL if no coroutine is running.
 	 *
@@ -157,11 +277,26 @@ public class Coroutine implements Runnable, Serializable {
 		}
 		State result = State.FINISHED;
 		final Stack oldStack = Stack.getStack();
+		final boolean scratch = this.stack == null && arena == null;
+		final Stack stack;
+		if (this.stack != null) {
+			stack = this.stack;
+			stack.unpark();
+		} else if (arena != null) {
+			arenaChunk = arena.allocate();
+			stack = this.stack = arena.stack(this, arenaChunk);
+		} else {
+			stack = Stack.takeScratch(this, stackSize, methodSize, strategy);
+		}
 		try {
 			state = State.RUNNING;
 			Stack.setStack(stack);
 			try {
-				runnable.run();
+				current.run();
+				if (stack.isSuspending()) {
+					result = State.SUSPENDED;
+					stack.resumeStack();
+				}
 			} catch (final SuspendExecution ex) {
 				assert ex == SuspendExecution.instance;
 				result = State.SUSPENDED;
@@ -170,6 +305,84 @@ public class Coroutine implements Runnable, Serializable {
 		} finally {
 			Stack.setStack(oldStack);
 			state = result;
+			if (profile != null && stack.takeGrown()) {
+				profile.record(current.getClass(), stack.getPeakData(), stack.getPeakMethod());
+			}
+			if (scratch) {
+				if (result == State.SUSPENDED) {
+					this.stack = stack;
+					stack.park();
+				} else {
+					Stack.releaseScratch(stack);
+				}
+			} else if (arena != null && result != State.SUSPENDED) {
+				arena.release(arenaChunk);
+				arenaChunk = -1;
+				this.stack = null;
+			} else if (result == State.SUSPENDED) {
+				stack.park();
+			}
+		}
+	}
+
+	/**
+	 * Makes a finished coroutine new again with a different SuspendableRunnable, reusing its stack.
+	 *
+	 * @param runnable the SuspendableRunnable for the Coroutine.
+	 * @see CoroutinePool
+	 */
+	public void reset(final SuspendableRunnable runnable) {
+		if (state != State.FINISHED) {
+			throw new Error("Coroutine is not finished.");
+		}
+		if (stack != null) {
+			stack.reset();
+		}
+		this.current = runnable;
+		this.state = State.NEW;
+	}
+
+	/**
+	 * Drops the runnable a finished coroutine last ran, so a pooled coroutine doesn't keep it reachable.  The
+	 * runnable it was created with stays in {@link #runnable}.
+	 */
+	void clear() {
+		if (state != State.FINISHED) {
+			throw new Error("Coroutine is not finished.");
+		}
+		current = null;
+	}
+
+	/**
+	 * Drops the saved state of a coroutine that won't be resumed, returning its stack arena chunk or off-heap region.
+	 * The coroutine is finished afterwards.  Does nothing to finished coroutines.
+	 */
+	public void close() {
+		if (state == State.RUNNING) {
+			throw new Error("Running coroutines may not be closed");
+		}
+		if (arena != null && arenaChunk != -1) {
+			arena.release(arenaChunk);
+			arenaChunk = -1;
+		}
+		if (stack != null) {
+			stack.release();
+			stack = null;
+		}
+		state = State.FINISHED;
+	}
+
+	/**
+	 * Releases stack space that isn't needed by the suspended coroutine.  Stack space is also released
+	 * automatically when a coroutine suspends using much less than it has, but this trims it to the minimum - use
+	 * it for instance before keeping a suspended coroutine around for a long time.
+	 */
+	public void compact() {
+		if (state == State.RUNNING) {
+			throw new Error("Running coroutines may not be compacted");
+		}
+		if (stack != null) {
+			stack.compact();
 		}
 	}
 
@@ -177,6 +390,9 @@ public class Coroutine implements Runnable, Serializable {
 		if (state == State.RUNNING) {
 			throw new Error("Running coroutines may not be serialized");
 		}
+		if (arena != null) {
+			throw new Error("Coroutines using a stack arena may not be serialized");
+		}
 		out.defaultWriteObject();
 	}
 }
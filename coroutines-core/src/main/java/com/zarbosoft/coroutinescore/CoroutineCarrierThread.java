@@ -0,0 +1,30 @@
+package com.zarbosoft.coroutinescore;
+
+import com.zarbosoft.coroutinescore.instrument.Stack;
+
+/**
+ * A thread that keeps the stack of the running coroutine in a field instead of a ThreadLocal, which makes calls to
+ * suspendable methods cheaper.  Coroutines run on any thread, this only makes them faster.  The constructor can be
+ * used as a {@link java.util.concurrent.ThreadFactory}: {@code Executors.newFixedThreadPool(n,
+ * CoroutineCarrierThread::new)}.
+ */
+public class CoroutineCarrierThread extends Thread {
+	/**
+	 * Internal - DO NOT USE !
+	 */
+	public Stack stack;
+
+	public CoroutineCarrierThread(final Runnable target) {
+		super(target);
+	}
+
+	public CoroutineCarrierThread(final Runnable target, final String name) {
+		super(target, name);
+	}
+
+	public CoroutineCarrierThread(
+			final ThreadGroup group, final Runnable target, final String name, final long stackSize
+	) {
+		super(group, target, name, stackSize);
+	}
+}
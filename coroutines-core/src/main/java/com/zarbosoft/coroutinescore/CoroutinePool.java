@@ -0,0 +1,68 @@
+package com.zarbosoft.coroutinescore;
+
+import java.util.ArrayDeque;
+
+/**
+ * Keeps finished coroutines to run new SuspendableRunnables without allocating a new stack each time.  Not thread
+ * safe - use a pool per thread.
+ */
+public class CoroutinePool {
+	private final int maxIdle;
+	private final int stackSize;
+	private final Coroutine.StackStrategy strategy;
+	private final ArrayDeque<Coroutine> idle = new ArrayDeque<>();
+
+	/**
+	 * @param maxIdle the maximum number of finished coroutines to keep
+	 */
+	public CoroutinePool(final int maxIdle) {
+		this(maxIdle, Coroutine.DEFAULT_STACK_SIZE, Coroutine.StackStrategy.CONTIGUOUS);
+	}
+
+	/**
+	 * @param maxIdle   the maximum number of finished coroutines to keep
+	 * @param stackSize the initial stack size for the data stack of new coroutines
+	 * @param strategy  how the data stack of new coroutines grows
+	 */
+	public CoroutinePool(final int maxIdle, final int stackSize, final Coroutine.StackStrategy strategy) {
+		if (maxIdle < 0) {
+			throw new IllegalArgumentException("maxIdle");
+		}
+		this.maxIdle = maxIdle;
+		this.stackSize = stackSize;
+		this.strategy = strategy;
+	}
+
+	/**
+	 * @param runnable the SuspendableRunnable for the Coroutine.
+	 * @return a new coroutine, reusing a released coroutine if there is one
+	 */
+	public Coroutine get(final SuspendableRunnable runnable) {
+		final Coroutine coroutine = idle.pollLast();
+		if (coroutine == null) {
+			return new Coroutine(runnable, stackSize, strategy);
+		}
+		coroutine.reset(runnable);
+		return coroutine;
+	}
+
+	/**
+	 * Returns a finished coroutine to the pool.  The coroutine must not be used after this.
+	 *
+	 * @param coroutine a finished coroutine
+	 */
+	public void release(final Coroutine coroutine) {
+		coroutine.clear();
+		if (idle.size() >= maxIdle) {
+			return;
+		}
+		idle.addLast(coroutine);
+	}
+
+	/**
+	 * @return the number of coroutines waiting to be reused
+	 */
+	public int getIdle() {
+		return idle.size();
+	}
+}
@@ -0,0 +1,120 @@
+package com.zarbosoft.coroutinescore;
+
+import com.zarbosoft.coroutinescore.instrument.Stack;
+
+import java.util.Arrays;
+
+/**
+ * Carves the stacks of coroutines out of large shared arrays, so that many small coroutines don't each own
+ * separate small arrays.  Use with {@link Coroutine#Coroutine(SuspendableRunnable, StackArena)}.
+ * <p>
+ * Each coroutine takes a fixed size chunk of the slabs when it first runs and returns it when it finishes or is
+ * closed.  A coroutine that needs more space than its chunk moves to its own arrays until it finishes.  Thread safe.
+ */
+public class StackArena {
+	private final int chunkSize;
+	private final int chunksPerSlab;
+
+	private long[][] longSlabs = new long[0][];
+	private int[][] intSlabs = new int[0][];
+	private Object[][] objectSlabs = new Object[0][];
+
+	/**
+	 * Chunks returned by finished or closed coroutines
+	 */
+	private int[] free = new int[16];
+	private int freeCount;
+
+	/**
+	 * The number of chunks in all slabs
+	 */
+	private int chunks;
+
+	public StackArena() {
+		this(Coroutine.DEFAULT_STACK_SIZE, 1024);
+	}
+
+	/**
+	 * @param chunkSize     the initial stack size for the data stack of each coroutine
+	 * @param chunksPerSlab the number of coroutine stacks in each slab
+	 */
+	public StackArena(final int chunkSize, final int chunksPerSlab) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("chunkSize");
+		}
+		if (chunksPerSlab <= 0 || chunksPerSlab > Integer.MAX_VALUE / chunkSize) {
+			throw new IllegalArgumentException("chunksPerSlab");
+		}
+		this.chunkSize = chunkSize;
+		this.chunksPerSlab = chunksPerSlab;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * @return the number of chunks not used by a coroutine
+	 */
+	public synchronized int getFree() {
+		return freeCount;
+	}
+
+	/**
+	 * @return the number of chunks in all slabs
+	 */
+	public synchronized int getChunks() {
+		return chunks;
+	}
+
+	/**
+	 * @return a chunk for a coroutine, adding a slab if all are used
+	 */
+	synchronized int allocate() {
+		if (freeCount > 0) {
+			return free[--freeCount];
+		}
+		if (chunks % chunksPerSlab == 0) {
+			final int slab = longSlabs.length;
+			final int slabSize = chunkSize * chunksPerSlab;
+			longSlabs = Arrays.copyOf(longSlabs, slab + 1);
+			intSlabs = Arrays.copyOf(intSlabs, slab + 1);
+			objectSlabs = Arrays.copyOf(objectSlabs, slab + 1);
+			longSlabs[slab] = new long[slabSize];
+			intSlabs[slab] = new int[slabSize];
+			objectSlabs[slab] = new Object[slabSize];
+		}
+		return chunks++;
+	}
+
+	/**
+	 * @param co
+	 * @param chunk a chunk from {@link #allocate()}
+	 * @return a stack using the chunk
+	 */
+	synchronized Stack stack(final Coroutine co, final int chunk) {
+		final int slab = chunk / chunksPerSlab;
+		return new Stack(
+				co,
+				longSlabs[slab],
+				intSlabs[slab],
+				objectSlabs[slab],
+				(chunk % chunksPerSlab) * chunkSize,
+				chunkSize
+		);
+	}
+
+	/**
+	 * Returns a chunk once its coroutine has finished or was closed, dropping the objects it saved.
+	 *
+	 * @param chunk
+	 */
+	synchronized void release(final int chunk) {
+		final int base = (chunk % chunksPerSlab) * chunkSize;
+		Arrays.fill(objectSlabs[chunk / chunksPerSlab], base, base + chunkSize, null);
+		if (freeCount == free.length) {
+			free = Arrays.copyOf(free, free.length * 2);
+		}
+		free[freeCount++] = chunk;
+	}
+}
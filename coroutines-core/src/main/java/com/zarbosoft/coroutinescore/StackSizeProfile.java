@@ -0,0 +1,106 @@
+package com.zarbosoft.coroutinescore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Learns how large the stacks of coroutines get per SuspendableRunnable class, so new coroutines can start with a
+ * stack that won't need to grow.  Use with {@link Coroutine#Coroutine(SuspendableRunnable, StackSizeProfile)}.
+ * <p>
+ * Profiles can be stored and loaded to keep what was learned across restarts.  Classes are identified by name, so
+ * this doesn't work for lambdas, whose class names aren't stable.
+ */
+public class StackSizeProfile {
+	private static final class Sizes {
+		final int stackSize;
+		final int methodSize;
+
+		Sizes(final int stackSize, final int methodSize) {
+			this.stackSize = stackSize;
+			this.methodSize = methodSize;
+		}
+
+		Sizes max(final Sizes other) {
+			if (other.stackSize <= stackSize && other.methodSize <= methodSize) {
+				return this;
+			}
+			return new Sizes(Math.max(stackSize, other.stackSize), Math.max(methodSize, other.methodSize));
+		}
+	}
+
+	private final ConcurrentHashMap<String, Sizes> sizes = new ConcurrentHashMap<>();
+
+	/**
+	 * @param runnableClass
+	 * @return the initial data stack size for coroutines running the class
+	 */
+	public int getStackSize(final Class<?> runnableClass) {
+		final Sizes found = sizes.get(runnableClass.getName());
+		return found == null ? Coroutine.DEFAULT_STACK_SIZE : found.stackSize;
+	}
+
+	/**
+	 * @param runnableClass
+	 * @return the initial method stack size for coroutines running the class, 0 for the default
+	 */
+	public int getMethodSize(final Class<?> runnableClass) {
+		final Sizes found = sizes.get(runnableClass.getName());
+		return found == null ? 0 : found.methodSize;
+	}
+
+	/**
+	 * Called when a coroutine needed more space than the profile gave it.
+	 *
+	 * @param runnableClass
+	 * @param stackSize
+	 * @param methodSize
+	 */
+	public void record(final Class<?> runnableClass, final int stackSize, final int methodSize) {
+		sizes.merge(runnableClass.getName(), new Sizes(stackSize, methodSize), Sizes::max);
+	}
+
+	/**
+	 * Writes the profile in {@link Properties} format.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void store(final OutputStream out) throws IOException {
+		final Properties properties = new Properties();
+		for (final Map.Entry<String, Sizes> entry : sizes.entrySet()) {
+			properties.setProperty(entry.getKey(), entry.getValue().stackSize + " " + entry.getValue().methodSize);
+		}
+		properties.store(out, "Coroutine stack sizes: data method");
+	}
+
+	/**
+	 * Adds a profile written by {@link #store(OutputStream)}, keeping the larger sizes of classes in both.
+	 *
+	 * @param in
+	 * @throws IOException
+	 */
+	public void load(final InputStream in) throws IOException {
+		final Properties properties = new Properties();
+		properties.load(in);
+		for (final String name : properties.stringPropertyNames()) {
+			final String[] values = properties.getProperty(name).trim().split(" +");
+			if (values.length != 2) {
+				throw new IOException("Invalid sizes for " + name + ": " + properties.getProperty(name));
+			}
+			final Sizes loaded;
+			try {
+				loaded = new Sizes(Integer.parseInt(values[0]), Integer.parseInt(values[1]));
+			} catch (final NumberFormatException e) {
+				throw new IOException("Invalid sizes for " + name + ": " + properties.getProperty(name), e);
+			}
+			if (loaded.stackSize <= 0 || loaded.methodSize < 0) {
+				throw new IOException("Invalid sizes for " + name + ": " + properties.getProperty(name));
+			}
+			sizes.merge(name, loaded, Sizes::max);
+		}
+	}
+}
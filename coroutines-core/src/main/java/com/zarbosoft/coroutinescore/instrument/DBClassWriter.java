@@ -44,6 +44,18 @@ public class DBClassWriter extends ClassWriter {
 		this.db = db;
 	}
 
+	@Override
+	public byte[] toByteArray() {
+		final InstrumentationTimings timings = db.getTimings();
+		if (timings == null) {
+			return super.toByteArray();
+		}
+		final long start = System.nanoTime();
+		final byte[] out = super.toByteArray();
+		timings.add(InstrumentationTimings.Phase.WRITING, System.nanoTime() - start);
+		return out;
+	}
+
 	@Override
 	protected String getCommonSuperClass(final String type1, final String type2) {
 		return db.getCommonSuperClass(type1, type2);
@@ -30,11 +30,19 @@ package com.zarbosoft.coroutinescore.instrument;
 
 import com.zarbosoft.coroutinescore.Coroutine;
 import org.objectweb.asm.*;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.LocalVariableNode;
 import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.VarInsnNode;
 import org.objectweb.asm.tree.analysis.AnalyzerException;
 
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Instrument a class by instrumenting all suspendable methods and copying the others.
@@ -49,15 +57,38 @@ public class InstrumentClass extends ClassVisitor {
 	private final MethodDatabase db;
 	private final boolean forceInstrumentation;
 	private String className;
+	private boolean isInterface;
 	private MethodDatabase.ClassEntry classEntry;
 	private boolean alreadyInstrumented;
 	private ArrayList<MethodNode> methods;
+	private final Set<String> declared = new HashSet<>();
+	private final Map<String, byte[]> frameClasses = new LinkedHashMap<>();
+	private boolean useFrameClasses;
 
 	public InstrumentClass(final ClassVisitor cv, final MethodDatabase db, final boolean forceInstrumentation) {
 		super(Opcodes.ASM4, cv);
 
 		this.db = db;
 		this.forceInstrumentation = forceInstrumentation;
+		this.useFrameClasses = db.isFrameClasses();
+	}
+
+	/**
+	 * Overrides the frame classes option of the database for this class, for classes whose frame classes can't be
+	 * defined.
+	 *
+	 * @param frameClasses
+	 */
+	public void setFrameClasses(final boolean frameClasses) {
+		this.useFrameClasses = frameClasses;
+	}
+
+	/**
+	 * @return the frame classes generated for the suspension points of the class when instrumenting with frame
+	 * classes, by internal name
+	 */
+	public Map<String, byte[]> getFrameClasses() {
+		return frameClasses;
 	}
 
 	@Override
@@ -70,6 +101,7 @@ public class InstrumentClass extends ClassVisitor {
 			final String[] interfaces
 	) {
 		this.className = name;
+		this.isInterface = (access & Opcodes.ACC_INTERFACE) != 0;
 		this.classEntry = new MethodDatabase.ClassEntry(superName);
 
 		// need atleast 1.5 for annotations to work
@@ -94,6 +126,7 @@ public class InstrumentClass extends ClassVisitor {
 	) {
 		final boolean suspendable = CheckInstrumentationVisitor.checkExceptions(exceptions);
 		classEntry.set(name, desc, suspendable);
+		declared.add(name + desc);
 
 		if (suspendable && checkAccess(access) && !(className.equals(COROUTINE_NAME) && name.equals("yield"))) {
 			if (db.isDebug()) {
@@ -113,6 +146,15 @@ public class InstrumentClass extends ClassVisitor {
 
 	@Override
 	public void visitEnd() {
+		final Set<String> stackParameterMethods = new HashSet<>();
+		if (methods != null && db.isStackParameter() && (!alreadyInstrumented || forceInstrumentation)) {
+			for (final MethodNode mn : methods) {
+				if (takesStackParameter(mn)) {
+					stackParameterMethods.add(mn.name + mn.desc);
+					classEntry.set(mn.name, InstrumentMethod.stackParameterDesc(mn.desc), true);
+				}
+			}
+		}
 		db.recordSuspendableMethods(className, classEntry);
 
 		if (methods != null) {
@@ -125,23 +167,43 @@ public class InstrumentClass extends ClassVisitor {
 					super.visitAnnotation(ALREADY_INSTRUMENTED_NAME, true);
 				}
 
+				final InstrumentationTimings timings = db.getTimings();
+				final long start = timings != null ? System.nanoTime() : 0;
 				for (final MethodNode mn : methods) {
-					final MethodVisitor outMV = makeOutMV(mn);
+					// Copy before instrumenting since analysis modifies the method
+					final MethodNode copy =
+							db.isUninstrumentedCopy() && mn.name.charAt(0) != '<' ? makeUninstrumentedCopy(mn) : null;
+					int stackParameter = -1;
+					if (stackParameterMethods.contains(mn.name + mn.desc)) {
+						emitStackParameterBridge(mn);
+						stackParameter = makeStackParameterOverload(mn);
+					}
 					try {
-						final InstrumentMethod im = new InstrumentMethod(db, className, mn);
+						final InstrumentMethod im =
+								new InstrumentMethod(db, className, mn, stackParameter, stackParameterMethods);
+						if (useFrameClasses) {
+							im.setFrameClasses(frameClasses);
+						}
 						if (im.collectCodeBlocks()) {
 							if (mn.name.charAt(0) == '<') {
 								throw new UnableToInstrumentException("special method", className, mn.name, mn.desc);
 							}
-							im.accept(outMV);
+							if (copy != null) {
+								copy.accept(makeOutMV(copy));
+								im.setUninstrumentedCopy(copy.name, copy.desc, isInterface);
+							}
+							im.accept(makeOutMV(mn));
 						} else {
-							mn.accept(outMV);
+							mn.accept(makeOutMV(mn));
 						}
 					} catch (final AnalyzerException ex) {
 						ex.printStackTrace();
 						throw new InternalError(ex.getMessage());
 					}
 				}
+				if (timings != null) {
+					timings.add(InstrumentationTimings.Phase.INSTRUMENTATION, System.nanoTime() - start);
+				}
 			}
 		}
 		super.visitEnd();
@@ -151,6 +213,140 @@ public class InstrumentClass extends ClassVisitor {
 		return super.visitMethod(mn.access, mn.name, mn.desc, mn.signature, toStringArray(mn.exceptions));
 	}
 
+	/**
+	 * Methods that can't be overridden are only called through an overload taking the stack if the caller is in the
+	 * same class, so they can't end up calling an overload that doesn't exist.
+	 *
+	 * @param mn
+	 * @return
+	 */
+	private boolean takesStackParameter(final MethodNode mn) {
+		return (mn.access & (Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC)) != 0 &&
+				mn.name.charAt(0) != '<' &&
+				!declared.contains(mn.name + InstrumentMethod.stackParameterDesc(mn.desc));
+	}
+
+	/**
+	 * Outputs a method with the original signature and annotations which looks up the stack and calls the overload
+	 * taking it, for reflection and callers in other classes.
+	 *
+	 * @param mn
+	 */
+	private void emitStackParameterBridge(final MethodNode mn) {
+		final MethodNode bridge = new MethodNode(mn.access & ~Opcodes.ACC_SYNCHRONIZED,
+				mn.name,
+				mn.desc,
+				mn.signature,
+				toStringArray(mn.exceptions)
+		);
+		bridge.parameters = mn.parameters;
+		bridge.visibleAnnotations = mn.visibleAnnotations;
+		bridge.invisibleAnnotations = mn.invisibleAnnotations;
+		bridge.visibleTypeAnnotations = mn.visibleTypeAnnotations;
+		bridge.invisibleTypeAnnotations = mn.invisibleTypeAnnotations;
+		bridge.visibleAnnotableParameterCount = mn.visibleAnnotableParameterCount;
+		bridge.visibleParameterAnnotations = mn.visibleParameterAnnotations;
+		bridge.invisibleAnnotableParameterCount = mn.invisibleAnnotableParameterCount;
+		bridge.invisibleParameterAnnotations = mn.invisibleParameterAnnotations;
+
+		final boolean isStatic = (mn.access & Opcodes.ACC_STATIC) != 0;
+		bridge.visitCode();
+		int local = 0;
+		if (!isStatic) {
+			bridge.visitVarInsn(Opcodes.ALOAD, local++);
+		}
+		for (final Type arg : Type.getArgumentTypes(mn.desc)) {
+			bridge.visitVarInsn(arg.getOpcode(Opcodes.ILOAD), local);
+			local += arg.getSize();
+		}
+		bridge.visitMethodInsn(Opcodes.INVOKESTATIC,
+				InstrumentMethod.STACK_NAME,
+				"getStack",
+				"()L" + InstrumentMethod.STACK_NAME + ";",
+				false
+		);
+		bridge.visitMethodInsn(isStatic ? Opcodes.INVOKESTATIC : Opcodes.INVOKESPECIAL,
+				className,
+				mn.name,
+				InstrumentMethod.stackParameterDesc(mn.desc),
+				isInterface
+		);
+		bridge.visitInsn(Type.getReturnType(mn.desc).getOpcode(Opcodes.IRETURN));
+		bridge.visitMaxs(local + 1, local);
+		bridge.visitEnd();
+		bridge.accept(makeOutMV(bridge));
+	}
+
+	/**
+	 * @param mn
+	 * @return a private copy of the method which isn't suspendable, for calls outside of coroutines
+	 */
+	private static MethodNode makeUninstrumentedCopy(final MethodNode mn) {
+		final List<String> exceptions = new ArrayList<>(mn.exceptions);
+		exceptions.remove(CheckInstrumentationVisitor.EXCEPTION_NAME);
+		final MethodNode copy = new MethodNode((mn.access & (Opcodes.ACC_STATIC | Opcodes.ACC_STRICT)) |
+				Opcodes.ACC_PRIVATE |
+				Opcodes.ACC_SYNTHETIC, mn.name + "$uninstrumented", mn.desc, null, toStringArray(exceptions));
+		mn.accept(copy);
+		copy.visibleAnnotations = null;
+		copy.invisibleAnnotations = null;
+		copy.visibleTypeAnnotations = null;
+		copy.invisibleTypeAnnotations = null;
+		copy.visibleAnnotableParameterCount = 0;
+		copy.visibleParameterAnnotations = null;
+		copy.invisibleAnnotableParameterCount = 0;
+		copy.invisibleParameterAnnotations = null;
+		copy.parameters = null;
+		return copy;
+	}
+
+	/**
+	 * Turns the method into the overload taking the stack as an extra parameter after the others.
+	 *
+	 * @param mn
+	 * @return the local holding the stack
+	 */
+	private static int makeStackParameterOverload(final MethodNode mn) {
+		int stackParameter = (mn.access & Opcodes.ACC_STATIC) != 0 ? 0 : 1;
+		for (final Type arg : Type.getArgumentTypes(mn.desc)) {
+			stackParameter += arg.getSize();
+		}
+
+		// Make room for the parameter before the other locals
+		for (int i = 0; i < mn.instructions.size(); ++i) {
+			final AbstractInsnNode node = mn.instructions.get(i);
+			if (node instanceof VarInsnNode && ((VarInsnNode) node).var >= stackParameter) {
+				((VarInsnNode) node).var += 1;
+			} else if (node instanceof IincInsnNode && ((IincInsnNode) node).var >= stackParameter) {
+				((IincInsnNode) node).var += 1;
+			}
+		}
+		if (mn.localVariables != null) {
+			for (final LocalVariableNode local : mn.localVariables) {
+				if (local.index >= stackParameter) {
+					local.index += 1;
+				}
+			}
+		}
+		mn.maxLocals += 1;
+
+		mn.desc = InstrumentMethod.stackParameterDesc(mn.desc);
+		mn.access = (mn.access & ~Opcodes.ACC_VARARGS) | Opcodes.ACC_SYNTHETIC;
+		mn.signature = null;
+		mn.parameters = null;
+		mn.visibleAnnotations = null;
+		mn.invisibleAnnotations = null;
+		mn.visibleTypeAnnotations = null;
+		mn.invisibleTypeAnnotations = null;
+		mn.visibleAnnotableParameterCount = 0;
+		mn.visibleParameterAnnotations = null;
+		mn.invisibleAnnotableParameterCount = 0;
+		mn.invisibleParameterAnnotations = null;
+		mn.visibleLocalVariableAnnotations = null;
+		mn.invisibleLocalVariableAnnotations = null;
+		return stackParameter;
+	}
+
 	private static boolean checkAccess(final int access) {
 		return (access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) == 0;
 	}
@@ -29,6 +29,7 @@
 package com.zarbosoft.coroutinescore.instrument;
 
 import com.zarbosoft.coroutinescore.SuspendExecution;
+import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
@@ -38,9 +39,12 @@ import org.objectweb.asm.tree.analysis.*;
 
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static org.objectweb.asm.Opcodes.*;
 
@@ -51,14 +55,27 @@ import static org.objectweb.asm.Opcodes.*;
  */
 public class InstrumentMethod {
 
-	private static final String STACK_NAME = Type.getInternalName(Stack.class);
+	static final String STACK_NAME = Type.getInternalName(Stack.class);
 
 	private final MethodDatabase db;
 	private final String className;
 	private final MethodNode mn;
 	Map<AbstractInsnNode, Frame> invokeSpecialFrames = new HashMap<>();
 	private final int lvarStack;
+	private final int lvarDataLong;
+	private final int lvarDataInt;
+	private final int lvarDataObject;
+	private final int lvarSP;
+	private final int lvarIntSP;
+	private final int lvarObjSP;
+	private final int lvarTemps;
 	private final int firstLocal;
+	private final int stackParameter;
+	private final Set<String> stackParameterMethods;
+	private String copyName;
+	private String copyDesc;
+	private boolean copyInInterface;
+	private Map<String, byte[]> frameClasses;
 
 	private final List<Suspension> suspensions = new ArrayList<>();
 	private final List<TryCatchBlockNode> reflectExceptRanges = new ArrayList<>();
@@ -77,15 +94,74 @@ public class InstrumentMethod {
 
 	public InstrumentMethod(
 			final MethodDatabase db, final String className, final MethodNode mn
+	) {
+		this(db, className, mn, -1, Collections.<String>emptySet());
+	}
+
+	/**
+	 * @param db
+	 * @param className
+	 * @param mn
+	 * @param stackParameter        the local of the parameter holding the stack, or -1 to look the stack up
+	 * @param stackParameterMethods the methods of the class with an overload taking the stack, as name + desc
+	 */
+	public InstrumentMethod(
+			final MethodDatabase db,
+			final String className,
+			final MethodNode mn,
+			final int stackParameter,
+			final Set<String> stackParameterMethods
 	) {
 		this.db = db;
 		this.className = className;
 		this.mn = mn;
+		this.stackParameter = stackParameter;
+		this.stackParameterMethods = stackParameterMethods;
 
 		this.lvarStack = mn.maxLocals;
+		if (db.isInlineStackAccess()) {
+			this.lvarDataLong = lvarStack + 1;
+			this.lvarDataInt = lvarStack + 2;
+			this.lvarDataObject = lvarStack + 3;
+			this.lvarSP = lvarStack + 4;
+			this.lvarIntSP = lvarStack + 5;
+			this.lvarObjSP = lvarStack + 6;
+			this.lvarTemps = lvarStack + 7;
+		} else {
+			this.lvarDataLong = -1;
+			this.lvarDataInt = -1;
+			this.lvarDataObject = -1;
+			this.lvarSP = -1;
+			this.lvarIntSP = -1;
+			this.lvarObjSP = -1;
+			this.lvarTemps = lvarStack + 1;
+		}
 		this.firstLocal = ((mn.access & Opcodes.ACC_STATIC) == Opcodes.ACC_STATIC) ? 0 : 1;
 	}
 
+	/**
+	 * Makes the method run the copy instead when called outside of a coroutine.
+	 *
+	 * @param name        the name of the uninstrumented copy
+	 * @param desc        the descriptor of the copy, which takes the method's parameters without the stack
+	 * @param inInterface
+	 */
+	public void setUninstrumentedCopy(final String name, final String desc, final boolean inInterface) {
+		this.copyName = name;
+		this.copyDesc = desc;
+		this.copyInInterface = inInterface;
+	}
+
+	/**
+	 * Saves the state at each suspension point in an instance of a class generated for it, in the object lane of the
+	 * Stack.
+	 *
+	 * @param frameClasses receives the generated classes, by internal name
+	 */
+	public void setFrameClasses(final Map<String, byte[]> frameClasses) {
+		this.frameClasses = frameClasses;
+	}
+
 	/**
 	 * Meta instructions don't generate bytecode
 	 *
@@ -96,17 +172,61 @@ public class InstrumentMethod {
 		return inst instanceof LabelNode || inst instanceof LineNumberNode || inst instanceof FrameNode;
 	}
 
+	/**
+	 * The caller pushes the same arguments again when it resumes this method, so parameters which are never
+	 * reassigned already hold their saved value on resume.
+	 *
+	 * @return the local indices of such parameters
+	 */
+	private BitSet findRepassedParams() {
+		final BitSet params = new BitSet();
+		int local = firstLocal;
+		for (final Type arg : Type.getArgumentTypes(mn.desc)) {
+			params.set(local);
+			local += arg.getSize();
+		}
+		for (int i = 0; i < mn.instructions.size(); ++i) {
+			final AbstractInsnNode node = mn.instructions.get(i);
+			switch (node.getOpcode()) {
+				case Opcodes.LSTORE:
+				case Opcodes.DSTORE:
+					params.clear(((VarInsnNode) node).var + 1);
+				case Opcodes.ISTORE:
+				case Opcodes.FSTORE:
+				case Opcodes.ASTORE:
+					params.clear(((VarInsnNode) node).var);
+					break;
+				case Opcodes.IINC:
+					params.clear(((IincInsnNode) node).var);
+					break;
+			}
+		}
+		return params;
+	}
+
 	public boolean collectCodeBlocks() throws AnalyzerException {
 		final Frame[] frames;
 		{
+			final InstrumentationTimings timings = db.getTimings();
+			final long start = timings != null ? System.nanoTime() : 0;
 			final Analyzer a = new TypeAnalyzer(db);
 			try {
 				frames = a.analyze(className, mn);
 			} catch (final UnsupportedOperationException ex) {
 				throw new AnalyzerException(null, ex.getMessage(), ex);
 			}
+			if (timings != null) {
+				timings.move(InstrumentationTimings.Phase.INSTRUMENTATION,
+						InstrumentationTimings.Phase.TYPE_ANALYSIS,
+						System.nanoTime() - start
+				);
+			}
 		}
 
+		BitSet[] liveLocals = null;
+		BitSet repassedParams = null;
+		boolean analyzedLiveness = false;
+
 		// Check instructions, find suspending nodes
 		for (int i = 0; i < mn.instructions.size(); ++i) {
 			final Frame f = frames[i];
@@ -143,7 +263,28 @@ public class InstrumentMethod {
 						node.name,
 						node.desc
 				);
-				suspensions.add(new Suspension(f, firstLocal, node, mn.instructions, db, isReflectInvoke));
+				if (!analyzedLiveness) {
+					analyzedLiveness = true;
+					liveLocals = LivenessAnalyzer.analyze(mn);
+					if (liveLocals == null) {
+						db.log(LogLevel.DEBUG,
+								"Method %s#%s%s uses subroutines, saving all locals",
+								className,
+								mn.name,
+								mn.desc
+						);
+					}
+					repassedParams = findRepassedParams();
+				}
+				suspensions.add(new Suspension(f,
+						liveLocals == null ? null : liveLocals[i],
+						repassedParams,
+						firstLocal,
+						node,
+						mn.instructions,
+						db,
+						isReflectInvoke
+				));
 				continue;
 			}
 
@@ -188,9 +329,71 @@ public class InstrumentMethod {
 			));
 		}
 
+		if (frameClasses != null) {
+			for (final Suspension suspension : suspensions) {
+				if (suspension.numSlots == 0)
+					continue;
+				suspension.frameClass = className + "$$Frame" + (frameClasses.size() + 1);
+				frameClasses.put(suspension.frameClass, generateFrameClass(suspension));
+				db.recordSuperClass(suspension.frameClass, "java/lang/Object");
+			}
+		}
+
 		return true;
 	}
 
+	/**
+	 * A frame class has a field for each saved local, named l + the local index, and each saved stack value, named s +
+	 * the stack index.
+	 *
+	 * @param suspension
+	 * @return
+	 */
+	private byte[] generateFrameClass(final Suspension suspension) {
+		final ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cw.visit(V1_6,
+				ACC_FINAL | ACC_SUPER | ACC_SYNTHETIC,
+				suspension.frameClass,
+				null,
+				"java/lang/Object",
+				new String[] {"java/io/Serializable"}
+		);
+		for (int i = firstLocal; i < suspension.frame.getLocals(); i++) {
+			final BasicValue v = (BasicValue) suspension.frame.getLocal(i);
+			if (!isNullType(v) && suspension.isSaved(i)) {
+				cw.visitField(ACC_SYNTHETIC, "l" + i, frameFieldDesc(v), null, null).visitEnd();
+			}
+		}
+		for (int i = 0; i < suspension.frame.getStackSize(); i++) {
+			final BasicValue v = (BasicValue) suspension.frame.getStack(i);
+			if (!isOmitted(v) && !isNullType(v)) {
+				cw.visitField(ACC_SYNTHETIC, "s" + i, frameFieldDesc(v), null, null).visitEnd();
+			}
+		}
+		final MethodVisitor init = cw.visitMethod(0, "<init>", "()V", null, null);
+		init.visitCode();
+		init.visitVarInsn(ALOAD, 0);
+		init.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+		init.visitInsn(RETURN);
+		init.visitMaxs(0, 0);
+		init.visitEnd();
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	/**
+	 * Small ints are kept as ints so the value comes back exactly as it was stored.
+	 *
+	 * @param v
+	 * @return
+	 */
+	private static String frameFieldDesc(final BasicValue v) {
+		if (isIntValue(v) && v.getType().getSort() != Type.FLOAT) {
+			return "I";
+		}
+		return v.getType().getDescriptor();
+	}
+
 	private static int isBlockingCall(final MethodInsnNode ins) {
 		for (int i = 0, n = BLOCKING_METHODS.length; i < n; i++) {
 			if (BLOCKING_METHODS[i].match(ins)) {
@@ -210,6 +413,15 @@ public class InstrumentMethod {
 		final Label lCatchSEE = new Label();
 
 		// Output setup code
+		for (final Suspension suspension : suspensions) {
+			if (!suspension.saveOnUnwind)
+				continue;
+			mv.visitTryCatchBlock(suspension.unwindStart,
+					suspension.unwindEnd,
+					suspension.unwindHandler,
+					CheckInstrumentationVisitor.EXCEPTION_NAME
+			);
+		}
 		mv.visitTryCatchBlock(lMethodEntry, lMethodEnd, lCatchSEE, CheckInstrumentationVisitor.EXCEPTION_NAME);
 
 		for (final TryCatchBlockNode tcb : reflectExceptRanges) {
@@ -244,10 +456,25 @@ public class InstrumentMethod {
 		final Label lCatchAll = new Label();
 		mv.visitTryCatchBlock(lMethodEntry, lMethodEnd, lCatchAll, null);
 
-		mv.visitMethodInsn(Opcodes.INVOKESTATIC, STACK_NAME, "getStack", "()L" + STACK_NAME + ";");
+		if (stackParameter >= 0) {
+			mv.visitVarInsn(ALOAD, stackParameter);
+		} else {
+			mv.visitMethodInsn(Opcodes.INVOKESTATIC, STACK_NAME, "getStack", "()L" + STACK_NAME + ";");
+		}
 		mv.visitInsn(Opcodes.DUP);
 		mv.visitVarInsn(Opcodes.ASTORE, lvarStack);
+		if (copyName != null) {
+			emitCallCopyOutsideCoroutine(mv);
+		}
 
+		// Only resumes need the jump table
+		final Label lResuming = new Label();
+		mv.visitInsn(Opcodes.DUP);
+		mv.visitMethodInsn(INVOKEVIRTUAL, STACK_NAME, "isResuming", "()Z");
+		mv.visitJumpInsn(IFNE, lResuming);
+		mv.visitMethodInsn(INVOKEVIRTUAL, STACK_NAME, "enterMethod", "()V");
+		mv.visitJumpInsn(GOTO, lMethodEntry);
+		mv.visitLabel(lResuming);
 		mv.visitMethodInsn(INVOKEVIRTUAL, STACK_NAME, "nextMethodEntry", "()I");
 		final Label[] lResumeEntries = new Label[suspensions.size()];
 		for (int i = 0; i < suspensions.size(); ++i) {
@@ -262,6 +489,7 @@ public class InstrumentMethod {
 
 		for (final Suspension suspension : suspensions) {
 			mv.visitLabel(suspension.restoreStart);
+			emitLoadStackArrays(mv, suspension);
 			emitRestoreState(mv, suspension);
 			mv.visitJumpInsn(GOTO, suspension.restoreContinue);
 		}
@@ -334,32 +562,61 @@ public class InstrumentMethod {
 			outputLast = suspension.node;
 
 			final MethodInsnNode min = (MethodInsnNode) suspension.node;
+			if (suspension.saveOnUnwind) {
+				// Only reserve space here, the state is stored by the unwind handler if the call suspends
+				emitPushMethod(mv, i + 1, suspension);
+				mv.visitInsn(NOP);
+				mv.visitLabel(suspension.restoreContinue);
+				emitSpillStack(mv, suspension);
+				mv.visitLabel(suspension.unwindStart);
+				outputLast = outputLast.getNext();
+				emitSuspendableCall(mv, min);
+				mv.visitLabel(suspension.unwindEnd);
+				if (db.isReturnOnSuspend()) {
+					final Label lNotSuspending = new Label();
+					emitIfNotSuspending(mv, lNotSuspending);
+					emitUnwindMethod(mv);
+					emitLoadStackArrays(mv, suspension);
+					emitStoreSpilled(mv, suspension);
+					emitReturnOnSuspend(mv);
+					mv.visitLabel(lNotSuspending);
+				}
+				continue;
+			}
 			emitStoreState(mv, i + 1, suspension);
-			emitRestoreStack(mv, suspension);
-			if (InstrumentClass.COROUTINE_NAME.equals(min.owner) && "yield".equals(min.name)) {
+			if (suspension.isYield) {
 				// Direct call to Coroutine.yield
 				// Replace with custom instructions
 				if (min.getOpcode() != Opcodes.INVOKESTATIC) {
 					throw new UnableToInstrumentException("invalid call to yield()", className, mn.name, mn.desc);
 				}
-				mv.visitFieldInsn(Opcodes.GETSTATIC,
-						STACK_NAME,
-						"exception_instance_not_for_user_code",
-						CheckInstrumentationVisitor.EXCEPTION_DESC
-				);
-				mv.visitInsn(ATHROW);
+				if (db.isReturnOnSuspend()) {
+					mv.visitVarInsn(ALOAD, lvarStack);
+					mv.visitMethodInsn(INVOKEVIRTUAL, STACK_NAME, "suspend", "()V");
+					emitUnwindMethod(mv);
+					emitReturnOnSuspend(mv);
+				} else {
+					emitRestoreStackAfterStore(mv, suspension);
+					mv.visitFieldInsn(Opcodes.GETSTATIC,
+							STACK_NAME,
+							"exception_instance_not_for_user_code",
+							CheckInstrumentationVisitor.EXCEPTION_DESC
+					);
+					mv.visitInsn(ATHROW);
+				}
 				mv.visitInsn(NOP);
 				mv.visitLabel(suspension.restoreContinue);
 				outputLast = outputLast.getNext();
 			} else {
 				// Suspendable method
 				// Reenter the method upon resuming
+				emitRestoreStackAfterStore(mv, suspension);
 				mv.visitInsn(NOP);
 				mv.visitLabel(suspension.restoreContinue);
 				outputLast = outputLast.getNext();
 				if (suspension.isReflective)
 					mv.visitLabel(suspension.reflectStart.getLabel());
-				outputNodesBetween.go(suspension.node, outputLast);
+				emitSuspendableCall(mv, min);
 				if (suspension.isReflective) {
 					// If a reflective call, unpack SuspendException from the InocationTargetException
 					mv.visitLabel(suspension.reflectEnd.getLabel());
@@ -382,17 +639,37 @@ public class InstrumentMethod {
 					mv.visitInsn(ATHROW);
 					mv.visitLabel(suspension.reflectContinue.getLabel());
 				}
+				if (db.isReturnOnSuspend()) {
+					final Label lNotSuspending = new Label();
+					emitIfNotSuspending(mv, lNotSuspending);
+					emitUnwindMethod(mv);
+					emitReturnOnSuspend(mv);
+					mv.visitLabel(lNotSuspending);
+				}
 			}
 		}
 		outputNodesBetween.go(outputLast, null);
 
 		mv.visitLabel(lMethodEnd);
 
+		// Output state saving for suspensions that save while unwinding
+		for (final Suspension suspension : suspensions) {
+			if (!suspension.saveOnUnwind)
+				continue;
+			mv.visitLabel(suspension.unwindHandler);
+			emitUnwindMethod(mv);
+			emitLoadStackArrays(mv, suspension);
+			emitStoreSpilled(mv, suspension);
+			mv.visitInsn(ATHROW);
+		}
+
 		// Output stack cleanup
 		mv.visitLabel(lCatchAll);
 		emitPopMethod(mv);
+		mv.visitInsn(ATHROW);
 		mv.visitLabel(lCatchSEE);
-		mv.visitInsn(ATHROW);   // rethrow shared between catchAll and catchSSE
+		emitUnwindMethod(mv);
+		mv.visitInsn(ATHROW);
 
 		if (mn.localVariables != null) {
 			for (final Object o : mn.localVariables) {
@@ -400,10 +677,67 @@ public class InstrumentMethod {
 			}
 		}
 
-		mv.visitMaxs(mn.maxStack + 3, mn.maxLocals + 1 + additionalLocals);
+		// The class writer computes the frames here
+		final InstrumentationTimings timings = db.getTimings();
+		final long start = timings != null ? System.nanoTime() : 0;
+		mv.visitMaxs(mn.maxStack + 5, lvarTemps + additionalLocals);
+		if (timings != null) {
+			timings.move(InstrumentationTimings.Phase.INSTRUMENTATION,
+					InstrumentationTimings.Phase.WRITING,
+					System.nanoTime() - start
+			);
+		}
 		mv.visitEnd();
 	}
 
+	/**
+	 * Expects the stack on the operand stack and leaves it there if it's not null.
+	 *
+	 * @param mv
+	 */
+	private void emitCallCopyOutsideCoroutine(final MethodVisitor mv) {
+		final Label lInCoroutine = new Label();
+		mv.visitInsn(Opcodes.DUP);
+		mv.visitJumpInsn(IFNONNULL, lInCoroutine);
+		mv.visitInsn(Opcodes.POP);
+		final boolean isStatic = firstLocal == 0;
+		int local = 0;
+		if (!isStatic) {
+			mv.visitVarInsn(ALOAD, local++);
+		}
+		for (final Type arg : Type.getArgumentTypes(copyDesc)) {
+			mv.visitVarInsn(arg.getOpcode(ILOAD), local);
+			local += arg.getSize();
+		}
+		mv.visitMethodInsn(isStatic ? INVOKESTATIC : INVOKESPECIAL, className, copyName, copyDesc, copyInInterface);
+		mv.visitInsn(Type.getReturnType(copyDesc).getOpcode(IRETURN));
+		mv.visitLabel(lInCoroutine);
+	}
+
+	/**
+	 * @param desc
+	 * @return the descriptor of the overload of a method taking the stack as an extra parameter
+	 */
+	static String stackParameterDesc(final String desc) {
+		final int end = desc.indexOf(')');
+		return desc.substring(0, end) + "L" + STACK_NAME + ";" + desc.substring(end);
+	}
+
+	/**
+	 * Calls methods of this class that have an overload taking the stack through the overload.
+	 *
+	 * @param mv
+	 * @param min
+	 */
+	private void emitSuspendableCall(final MethodVisitor mv, final MethodInsnNode min) {
+		if (className.equals(min.owner) && stackParameterMethods.contains(min.name + min.desc)) {
+			mv.visitVarInsn(ALOAD, lvarStack);
+			mv.visitMethodInsn(min.getOpcode(), min.owner, min.name, stackParameterDesc(min.desc), min.itf);
+			return;
+		}
+		min.accept(mv);
+	}
+
 	private static void dumpParameterAnnotations(
 			final MethodVisitor mv, final List[] parameterAnnotations, final boolean visible
 	) {
@@ -436,7 +770,7 @@ public class InstrumentMethod {
 		int neededLocals = 0;
 		for (int i = arguments; i >= 1; i--) {
 			final BasicValue v = (BasicValue) frame.getStack(stackIndex + i);
-			mv.visitVarInsn(v.getType().getOpcode(Opcodes.ISTORE), lvarStack + 1 + neededLocals);
+			mv.visitVarInsn(v.getType().getOpcode(Opcodes.ISTORE), lvarTemps + neededLocals);
 			neededLocals += v.getSize();
 		}
 		db.log(LogLevel.DEBUG,
@@ -454,7 +788,7 @@ public class InstrumentMethod {
 		for (int i = 1; i <= arguments; i++) {
 			final BasicValue v = (BasicValue) frame.getStack(stackIndex + i);
 			neededLocals -= v.getSize();
-			mv.visitVarInsn(v.getType().getOpcode(Opcodes.ILOAD), lvarStack + 1 + neededLocals);
+			mv.visitVarInsn(v.getType().getOpcode(Opcodes.ILOAD), lvarTemps + neededLocals);
 		}
 	}
 
@@ -463,11 +797,78 @@ public class InstrumentMethod {
 		mv.visitMethodInsn(INVOKEVIRTUAL, STACK_NAME, "popMethod", "()V");
 	}
 
-	private void emitStoreState(final MethodVisitor mv, final int jumpTableIndex, final Suspension suspension) {
+	private void emitUnwindMethod(final MethodVisitor mv) {
+		mv.visitVarInsn(ALOAD, lvarStack);
+		mv.visitMethodInsn(INVOKEVIRTUAL, STACK_NAME, "unwindMethod", "()V");
+	}
+
+	private void emitIfNotSuspending(final MethodVisitor mv, final Label lNotSuspending) {
+		mv.visitVarInsn(ALOAD, lvarStack);
+		mv.visitMethodInsn(INVOKEVIRTUAL, STACK_NAME, "isSuspending", "()Z");
+		mv.visitJumpInsn(IFEQ, lNotSuspending);
+	}
+
+	/**
+	 * Returns a default value - the caller discards it when it sees the suspension.
+	 *
+	 * @param mv
+	 */
+	private void emitReturnOnSuspend(final MethodVisitor mv) {
+		final Type returnType = Type.getReturnType(mn.desc);
+		switch (returnType.getSort()) {
+			case Type.VOID:
+				break;
+			case Type.BOOLEAN:
+			case Type.BYTE:
+			case Type.SHORT:
+			case Type.CHAR:
+			case Type.INT:
+				mv.visitInsn(Opcodes.ICONST_0);
+				break;
+			case Type.FLOAT:
+				mv.visitInsn(Opcodes.FCONST_0);
+				break;
+			case Type.LONG:
+				mv.visitInsn(Opcodes.LCONST_0);
+				break;
+			case Type.DOUBLE:
+				mv.visitInsn(Opcodes.DCONST_0);
+				break;
+			case Type.OBJECT:
+			case Type.ARRAY:
+				mv.visitInsn(Opcodes.ACONST_NULL);
+				break;
+			default:
+				throw new InternalError("Unexpected type: " + returnType);
+		}
+		mv.visitInsn(returnType.getOpcode(Opcodes.IRETURN));
+	}
+
+	private void emitPushMethod(final MethodVisitor mv, final int jumpTableIndex, final Suspension suspension) {
 		mv.visitVarInsn(ALOAD, lvarStack);
 		emitConst(mv, jumpTableIndex);
-		emitConst(mv, suspension.numSlots);
-		mv.visitMethodInsn(INVOKEVIRTUAL, STACK_NAME, "pushMethodAndReserveSpace", "(II)V");
+		if (suspension.frameClass != null) {
+			emitConst(mv, 0);
+			emitConst(mv, 0);
+			emitConst(mv, 1);
+		} else {
+			emitConst(mv, suspension.numLongSlots);
+			emitConst(mv, suspension.numIntSlots);
+			emitConst(mv, suspension.numObjSlots);
+		}
+		mv.visitMethodInsn(INVOKEVIRTUAL, STACK_NAME, "pushMethodAndReserveSpace", "(IIII)V");
+	}
+
+	private void emitStoreState(final MethodVisitor mv, final int jumpTableIndex, final Suspension suspension) {
+		emitPushMethod(mv, jumpTableIndex, suspension);
+
+		if (db.isInlineStackAccess() || suspension.frameClass != null) {
+			// The array and index or the frame go below the value, so store from locals
+			emitLoadStackArrays(mv, suspension);
+			emitStoreStackToSpillLocals(mv, suspension);
+			emitStoreSpilled(mv, suspension);
+			return;
+		}
 
 		for (int i = suspension.frame.getStackSize(); i-- > 0; ) {
 			final BasicValue v = (BasicValue) suspension.frame.getStack(i);
@@ -475,7 +876,7 @@ public class InstrumentMethod {
 				if (!isNullType(v)) {
 					final int slotIdx = suspension.stackSlotIndices[i];
 					assert slotIdx >= 0 && slotIdx < suspension.numSlots;
-					emitStoreValue(mv, v, lvarStack, slotIdx);
+					emitStoreValue(mv, v, slotIdx);
 				} else {
 					db.log(LogLevel.DEBUG, "NULL stack entry: type=%s size=%d", v.getType(), v.getSize());
 					mv.visitInsn(Opcodes.POP);
@@ -483,13 +884,147 @@ public class InstrumentMethod {
 			}
 		}
 
+		emitStoreLocals(mv, suspension);
+	}
+
+	/**
+	 * Moves the stack into locals and back so that the unwind handler can store it if the call suspends.
+	 *
+	 * @param mv
+	 * @param suspension
+	 */
+	private void emitSpillStack(final MethodVisitor mv, final Suspension suspension) {
+		emitStoreStackToSpillLocals(mv, suspension);
+		emitLoadSpilledStack(mv, suspension);
+	}
+
+	private void emitStoreStackToSpillLocals(final MethodVisitor mv, final Suspension suspension) {
+		final int[] spillLocals = spillLocals(suspension);
+		for (int i = suspension.frame.getStackSize(); i-- > 0; ) {
+			final BasicValue v = (BasicValue) suspension.frame.getStack(i);
+			if (!isOmitted(v)) {
+				if (!isNullType(v)) {
+					mv.visitVarInsn(v.getType().getOpcode(Opcodes.ISTORE), spillLocals[i]);
+				} else {
+					mv.visitInsn(Opcodes.POP);
+				}
+			}
+		}
+	}
+
+	private void emitLoadSpilledStack(final MethodVisitor mv, final Suspension suspension) {
+		final int[] spillLocals = spillLocals(suspension);
+		for (int i = 0; i < suspension.frame.getStackSize(); i++) {
+			final BasicValue v = (BasicValue) suspension.frame.getStack(i);
+			if (!isOmitted(v)) {
+				if (!isNullType(v)) {
+					mv.visitVarInsn(v.getType().getOpcode(Opcodes.ILOAD), spillLocals[i]);
+				} else {
+					mv.visitInsn(Opcodes.ACONST_NULL);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stores the spilled stack and the locals, into a new frame if the suspension has a frame class.
+	 *
+	 * @param mv
+	 * @param suspension
+	 */
+	private void emitStoreSpilled(final MethodVisitor mv, final Suspension suspension) {
+		if (suspension.frameClass == null) {
+			emitStoreSpilledStack(mv, suspension);
+			emitStoreLocals(mv, suspension);
+			return;
+		}
+		final BasicValue frameValue = new BasicValue(Type.getObjectType(suspension.frameClass));
+		if (db.isInlineStackAccess()) {
+			emitInlineSlot(mv, frameValue, 0);
+		}
+		mv.visitTypeInsn(NEW, suspension.frameClass);
+		mv.visitInsn(DUP);
+		mv.visitMethodInsn(INVOKESPECIAL, suspension.frameClass, "<init>", "()V", false);
 		for (int i = firstLocal; i < suspension.frame.getLocals(); i++) {
 			final BasicValue v = (BasicValue) suspension.frame.getLocal(i);
-			if (!isNullType(v)) {
+			if (!isNullType(v) && suspension.isSaved(i)) {
+				mv.visitInsn(DUP);
 				mv.visitVarInsn(v.getType().getOpcode(Opcodes.ILOAD), i);
+				mv.visitFieldInsn(PUTFIELD, suspension.frameClass, "l" + i, frameFieldDesc(v));
+			}
+		}
+		final int[] spillLocals = spillLocals(suspension);
+		for (int i = 0; i < suspension.frame.getStackSize(); i++) {
+			final BasicValue v = (BasicValue) suspension.frame.getStack(i);
+			if (!isOmitted(v) && !isNullType(v)) {
+				mv.visitInsn(DUP);
+				mv.visitVarInsn(v.getType().getOpcode(Opcodes.ILOAD), spillLocals[i]);
+				mv.visitFieldInsn(PUTFIELD, suspension.frameClass, "s" + i, frameFieldDesc(v));
+			}
+		}
+		if (db.isInlineStackAccess()) {
+			mv.visitInsn(AASTORE);
+		} else {
+			emitStoreValue(mv, frameValue, 0);
+		}
+	}
+
+	/**
+	 * Puts the stack back for the call after storing the state.
+	 *
+	 * @param mv
+	 * @param suspension
+	 */
+	private void emitRestoreStackAfterStore(final MethodVisitor mv, final Suspension suspension) {
+		if (suspension.frameClass != null) {
+			emitLoadSpilledStack(mv, suspension);
+		} else {
+			emitRestoreStack(mv, suspension);
+		}
+	}
+
+	private void emitStoreSpilledStack(final MethodVisitor mv, final Suspension suspension) {
+		final int[] spillLocals = spillLocals(suspension);
+		for (int i = 0; i < suspension.frame.getStackSize(); i++) {
+			final BasicValue v = (BasicValue) suspension.frame.getStack(i);
+			if (!isOmitted(v) && !isNullType(v)) {
+				final int slotIdx = suspension.stackSlotIndices[i];
+				assert slotIdx >= 0 && slotIdx < suspension.numSlots;
+				emitStoreLocal(mv, v, spillLocals[i], slotIdx);
+			}
+		}
+	}
+
+	/**
+	 * Spilled stack values share the locals after the Stack locals with the temporaries of emitNewAndDup - they are
+	 * only live for the duration of the suspendable call.
+	 *
+	 * @param suspension
+	 * @return the local index for each stack index
+	 */
+	private int[] spillLocals(final Suspension suspension) {
+		final int[] out = new int[suspension.frame.getStackSize()];
+		int neededLocals = 0;
+		for (int i = 0; i < suspension.frame.getStackSize(); i++) {
+			final BasicValue v = (BasicValue) suspension.frame.getStack(i);
+			out[i] = lvarTemps + neededLocals;
+			if (!isOmitted(v) && !isNullType(v)) {
+				neededLocals += v.getSize();
+			}
+		}
+		if (additionalLocals < neededLocals) {
+			additionalLocals = neededLocals;
+		}
+		return out;
+	}
+
+	private void emitStoreLocals(final MethodVisitor mv, final Suspension suspension) {
+		for (int i = firstLocal; i < suspension.frame.getLocals(); i++) {
+			final BasicValue v = (BasicValue) suspension.frame.getLocal(i);
+			if (!isNullType(v) && suspension.isSaved(i)) {
 				final int slotIdx = suspension.localSlotIndices[i];
 				assert slotIdx >= 0 && slotIdx < suspension.numSlots;
-				emitStoreValue(mv, v, lvarStack, slotIdx);
+				emitStoreLocal(mv, v, i, slotIdx);
 			}
 		}
 	}
@@ -501,7 +1036,7 @@ public class InstrumentMethod {
 				if (!isNullType(v)) {
 					final int slotIdx = fi.stackSlotIndices[i];
 					assert slotIdx >= 0 && slotIdx < fi.numSlots;
-					emitRestoreValue(mv, v, lvarStack, slotIdx);
+					emitRestoreValue(mv, v, slotIdx);
 				} else {
 					mv.visitInsn(Opcodes.ACONST_NULL);
 				}
@@ -510,12 +1045,19 @@ public class InstrumentMethod {
 	}
 
 	private void emitRestoreState(final MethodVisitor mv, final Suspension fi) {
+		if (fi.frameClass != null) {
+			emitRestoreFrame(mv, fi);
+			return;
+		}
 		for (int i = firstLocal; i < fi.frame.getLocals(); i++) {
 			final BasicValue v = (BasicValue) fi.frame.getLocal(i);
+			if (!fi.isSaved(i)) {
+				continue;
+			}
 			if (!isNullType(v)) {
 				final int slotIdx = fi.localSlotIndices[i];
 				assert slotIdx >= 0 && slotIdx < fi.numSlots;
-				emitRestoreValue(mv, v, lvarStack, slotIdx);
+				emitRestoreValue(mv, v, slotIdx);
 				mv.visitVarInsn(v.getType().getOpcode(Opcodes.ISTORE), i);
 			} else if (v != BasicValue.UNINITIALIZED_VALUE) {
 				mv.visitInsn(Opcodes.ACONST_NULL);
@@ -526,8 +1068,157 @@ public class InstrumentMethod {
 		emitRestoreStack(mv, fi);
 	}
 
+	/**
+	 * The frame is kept in the first temporary local while its fields are read, then the local is cleared.  The local
+	 * is shared with spilled stack values, so leaving the frame there would make the frame computation merge the frame
+	 * class with their types, which needs their class files.
+	 *
+	 * @param mv
+	 * @param fi
+	 */
+	private void emitRestoreFrame(final MethodVisitor mv, final Suspension fi) {
+		final int lvarFrame = lvarTemps;
+		if (additionalLocals < 1) {
+			additionalLocals = 1;
+		}
+		emitRestoreValue(mv, new BasicValue(Type.getObjectType(fi.frameClass)), 0);
+		mv.visitVarInsn(ASTORE, lvarFrame);
+		for (int i = firstLocal; i < fi.frame.getLocals(); i++) {
+			final BasicValue v = (BasicValue) fi.frame.getLocal(i);
+			if (!fi.isSaved(i)) {
+				continue;
+			}
+			if (!isNullType(v)) {
+				mv.visitVarInsn(ALOAD, lvarFrame);
+				mv.visitFieldInsn(GETFIELD, fi.frameClass, "l" + i, frameFieldDesc(v));
+				mv.visitVarInsn(v.getType().getOpcode(Opcodes.ISTORE), i);
+			} else if (v != BasicValue.UNINITIALIZED_VALUE) {
+				mv.visitInsn(Opcodes.ACONST_NULL);
+				mv.visitVarInsn(Opcodes.ASTORE, i);
+			}
+		}
+		for (int i = 0; i < fi.frame.getStackSize(); i++) {
+			final BasicValue v = (BasicValue) fi.frame.getStack(i);
+			if (!isOmitted(v)) {
+				if (!isNullType(v)) {
+					mv.visitVarInsn(ALOAD, lvarFrame);
+					mv.visitFieldInsn(GETFIELD, fi.frameClass, "s" + i, frameFieldDesc(v));
+				} else {
+					mv.visitInsn(Opcodes.ACONST_NULL);
+				}
+			}
+		}
+		mv.visitInsn(Opcodes.ACONST_NULL);
+		mv.visitVarInsn(ASTORE, lvarFrame);
+	}
+
+	/**
+	 * Loads the Stack arrays and the method's SP into locals for inline stack access.  Needs to be repeated after
+	 * anything that can grow the arrays or move the SP.
+	 *
+	 * @param mv
+	 * @param suspension
+	 */
+	private void emitLoadStackArrays(final MethodVisitor mv, final Suspension suspension) {
+		if (!db.isInlineStackAccess()) {
+			return;
+		}
+		if (suspension.frameClass != null) {
+			mv.visitVarInsn(ALOAD, lvarStack);
+			mv.visitFieldInsn(GETFIELD, STACK_NAME, "dataObject", "[Ljava/lang/Object;");
+			mv.visitVarInsn(ASTORE, lvarDataObject);
+			mv.visitVarInsn(ALOAD, lvarStack);
+			mv.visitFieldInsn(GETFIELD, STACK_NAME, "curMethodObjSP", "I");
+			mv.visitVarInsn(ISTORE, lvarObjSP);
+			return;
+		}
+		if (suspension.numLongSlots > 0) {
+			mv.visitVarInsn(ALOAD, lvarStack);
+			mv.visitFieldInsn(GETFIELD, STACK_NAME, "dataLong", "[J");
+			mv.visitVarInsn(ASTORE, lvarDataLong);
+			mv.visitVarInsn(ALOAD, lvarStack);
+			mv.visitFieldInsn(GETFIELD, STACK_NAME, "curMethodSP", "I");
+			mv.visitVarInsn(ISTORE, lvarSP);
+		}
+		if (suspension.numIntSlots > 0) {
+			mv.visitVarInsn(ALOAD, lvarStack);
+			mv.visitFieldInsn(GETFIELD, STACK_NAME, "dataInt", "[I");
+			mv.visitVarInsn(ASTORE, lvarDataInt);
+			mv.visitVarInsn(ALOAD, lvarStack);
+			mv.visitFieldInsn(GETFIELD, STACK_NAME, "curMethodIntSP", "I");
+			mv.visitVarInsn(ISTORE, lvarIntSP);
+		}
+		if (suspension.numObjSlots > 0) {
+			mv.visitVarInsn(ALOAD, lvarStack);
+			mv.visitFieldInsn(GETFIELD, STACK_NAME, "dataObject", "[Ljava/lang/Object;");
+			mv.visitVarInsn(ASTORE, lvarDataObject);
+			mv.visitVarInsn(ALOAD, lvarStack);
+			mv.visitFieldInsn(GETFIELD, STACK_NAME, "curMethodObjSP", "I");
+			mv.visitVarInsn(ISTORE, lvarObjSP);
+		}
+	}
+
+	/**
+	 * Pushes the array and index for inline stack access.
+	 *
+	 * @param mv
+	 * @param v
+	 * @param idx
+	 */
+	private void emitInlineSlot(final MethodVisitor mv, final BasicValue v, final int idx) {
+		if (v.isReference()) {
+			mv.visitVarInsn(ALOAD, lvarDataObject);
+			mv.visitVarInsn(ILOAD, lvarObjSP);
+		} else if (isIntValue(v)) {
+			mv.visitVarInsn(ALOAD, lvarDataInt);
+			mv.visitVarInsn(ILOAD, lvarIntSP);
+		} else {
+			mv.visitVarInsn(ALOAD, lvarDataLong);
+			mv.visitVarInsn(ILOAD, lvarSP);
+		}
+		if (idx != 0) {
+			emitConst(mv, idx);
+			mv.visitInsn(IADD);
+		}
+	}
+
+	private void emitStoreLocal(final MethodVisitor mv, final BasicValue v, final int local, final int idx) {
+		if (!db.isInlineStackAccess()) {
+			mv.visitVarInsn(v.getType().getOpcode(Opcodes.ILOAD), local);
+			emitStoreValue(mv, v, idx);
+			return;
+		}
+		emitInlineSlot(mv, v, idx);
+		mv.visitVarInsn(v.getType().getOpcode(Opcodes.ILOAD), local);
+		switch (v.getType().getSort()) {
+			case Type.OBJECT:
+			case Type.ARRAY:
+				mv.visitInsn(AASTORE);
+				return;
+			case Type.BOOLEAN:
+			case Type.BYTE:
+			case Type.SHORT:
+			case Type.CHAR:
+			case Type.INT:
+				mv.visitInsn(IASTORE);
+				return;
+			case Type.FLOAT:
+				mv.visitMethodInsn(INVOKESTATIC, "java/lang/Float", "floatToRawIntBits", "(F)I", false);
+				mv.visitInsn(IASTORE);
+				return;
+			case Type.LONG:
+				break;
+			case Type.DOUBLE:
+				mv.visitMethodInsn(INVOKESTATIC, "java/lang/Double", "doubleToRawLongBits", "(D)J", false);
+				break;
+			default:
+				throw new InternalError("Unexpected type: " + v.getType());
+		}
+		mv.visitInsn(LASTORE);
+	}
+
 	private void emitStoreValue(
-			final MethodVisitor mv, final BasicValue v, final int lvarStack, final int idx
+			final MethodVisitor mv, final BasicValue v, final int idx
 	) throws InternalError, IndexOutOfBoundsException {
 		final String desc;
 
@@ -561,7 +1252,11 @@ public class InstrumentMethod {
 		mv.visitMethodInsn(Opcodes.INVOKESTATIC, STACK_NAME, "push", desc);
 	}
 
-	private void emitRestoreValue(final MethodVisitor mv, final BasicValue v, final int lvarStack, final int idx) {
+	private void emitRestoreValue(final MethodVisitor mv, final BasicValue v, final int idx) {
+		if (db.isInlineStackAccess()) {
+			emitInlineRestoreValue(mv, v, idx);
+			return;
+		}
 		mv.visitVarInsn(ALOAD, lvarStack);
 		emitConst(mv, idx);
 
@@ -607,6 +1302,70 @@ public class InstrumentMethod {
 		}
 	}
 
+	private void emitInlineRestoreValue(final MethodVisitor mv, final BasicValue v, final int idx) {
+		emitInlineSlot(mv, v, idx);
+		switch (v.getType().getSort()) {
+			case Type.OBJECT:
+				final String internalName = v.getType().getInternalName();
+				mv.visitInsn(AALOAD);
+				if (!internalName.equals("java/lang/Object")) {
+					mv.visitTypeInsn(CHECKCAST, internalName);
+				}
+				break;
+			case Type.ARRAY:
+				mv.visitInsn(AALOAD);
+				mv.visitTypeInsn(CHECKCAST, v.getType().getDescriptor());
+				break;
+			case Type.BYTE:
+				mv.visitInsn(IALOAD);
+				mv.visitInsn(Opcodes.I2B);
+				break;
+			case Type.SHORT:
+				mv.visitInsn(IALOAD);
+				mv.visitInsn(Opcodes.I2S);
+				break;
+			case Type.CHAR:
+				mv.visitInsn(IALOAD);
+				mv.visitInsn(Opcodes.I2C);
+				break;
+			case Type.BOOLEAN:
+			case Type.INT:
+				mv.visitInsn(IALOAD);
+				break;
+			case Type.FLOAT:
+				mv.visitInsn(IALOAD);
+				mv.visitMethodInsn(INVOKESTATIC, "java/lang/Float", "intBitsToFloat", "(I)F", false);
+				break;
+			case Type.LONG:
+				mv.visitInsn(LALOAD);
+				break;
+			case Type.DOUBLE:
+				mv.visitInsn(LALOAD);
+				mv.visitMethodInsn(INVOKESTATIC, "java/lang/Double", "longBitsToDouble", "(J)D", false);
+				break;
+			default:
+				throw new InternalError("Unexpected type: " + v.getType());
+		}
+	}
+
+	/**
+	 * @param v
+	 * @return true if the value is saved in the 32 bit lane of the Stack
+	 */
+	static boolean isIntValue(final BasicValue v) {
+		switch (v.getType().getSort()) {
+			case Type.BOOLEAN:
+			case Type.BYTE:
+			case Type.SHORT:
+			case Type.CHAR:
+			case Type.INT:
+			case Type.FLOAT:
+				return true;
+			default:
+				return false;
+		}
+	}
+
 	static boolean isNullType(final BasicValue v) {
 		return (v == BasicValue.UNINITIALIZED_VALUE) ||
 				(v.isReference() && v.getType().getInternalName().equals("null"));
@@ -628,21 +1387,36 @@ public class InstrumentMethod {
 
 	static class Suspension {
 		final Frame frame;
+		final BitSet liveLocals;
+		final BitSet repassedParams;
 		final AbstractInsnNode node;
 		final int numSlots;
 		final int numObjSlots;
+		final int numIntSlots;
+		final int numLongSlots;
 		final int[] localSlotIndices;
 		final int[] stackSlotIndices;
 		final boolean isReflective;
+		final boolean isYield;
+		final boolean saveOnUnwind;
 		final Label restoreStart;
 		final Label restoreContinue;
+		final Label unwindStart;
+		final Label unwindEnd;
+		final Label unwindHandler;
 		final LabelNode reflectStart;
 		final LabelNode reflectEnd;
 		final LabelNode reflectExceptHandle;
 		final LabelNode reflectContinue;
+		/**
+		 * The internal name of the class the state is saved in, or null if it's saved in the Stack slots
+		 */
+		String frameClass;
 
 		Suspension(
 				final Frame f,
+				final BitSet liveLocals,
+				final BitSet repassedParams,
 				final int firstLocal,
 				final AbstractInsnNode node,
 				final InsnList insnList,
@@ -650,10 +1424,25 @@ public class InstrumentMethod {
 				final boolean isReflective
 		) {
 			this.frame = f;
+			this.liveLocals = liveLocals;
+			this.repassedParams = repassedParams;
 			this.node = node;
 			this.isReflective = isReflective;
+			final MethodInsnNode min = (MethodInsnNode) node;
+			this.isYield = InstrumentClass.COROUTINE_NAME.equals(min.owner) && "yield".equals(min.name);
+			// Yields always suspend and reflective calls rethrow from their own handler so save those up front
+			this.saveOnUnwind = db.isSaveOnUnwind() && !isReflective && !isYield;
 			restoreStart = new Label();
 			restoreContinue = new Label();
+			if (saveOnUnwind) {
+				unwindStart = new Label();
+				unwindEnd = new Label();
+				unwindHandler = new Label();
+			} else {
+				unwindStart = null;
+				unwindEnd = null;
+				unwindHandler = null;
+			}
 			if (isReflective) {
 				reflectStart = new LabelNode();
 				reflectEnd = new LabelNode();
@@ -667,7 +1456,8 @@ public class InstrumentMethod {
 			}
 
 			int idxObj = 0;
-			int idxPrim = 0;
+			int idxLong = 0;
+			int idxInt = 0;
 
 			if (f != null) {
 				stackSlotIndices = new int[f.getStackSize()];
@@ -701,8 +1491,10 @@ public class InstrumentMethod {
 					} else if (!isNullType(v)) {
 						if (v.isReference()) {
 							stackSlotIndices[i] = idxObj++;
+						} else if (isIntValue(v)) {
+							stackSlotIndices[i] = idxInt++;
 						} else {
-							stackSlotIndices[i] = idxPrim++;
+							stackSlotIndices[i] = idxLong++;
 						}
 					} else {
 						stackSlotIndices[i] = -666; // an invalid index ;)
@@ -712,11 +1504,32 @@ public class InstrumentMethod {
 				localSlotIndices = new int[f.getLocals()];
 				for (int i = firstLocal; i < f.getLocals(); i++) {
 					final BasicValue v = (BasicValue) f.getLocal(i);
-					if (!isNullType(v)) {
+					if (!isLive(i)) {
+						if (!isNullType(v) && db.isDebug()) {
+							db.log(LogLevel.DEBUG,
+									"Omit dead local %d at instruction %d with type %s",
+									i,
+									insnList.indexOf(node),
+									v
+							);
+						}
+						localSlotIndices[i] = -666; // an invalid index ;)
+					} else if (repassedParams.get(i)) {
+						if (db.isDebug()) {
+							db.log(LogLevel.DEBUG,
+									"Omit parameter %d at instruction %d, caller passes it again on resume",
+									i,
+									insnList.indexOf(node)
+							);
+						}
+						localSlotIndices[i] = -666; // an invalid index ;)
+					} else if (!isNullType(v)) {
 						if (v.isReference()) {
 							localSlotIndices[i] = idxObj++;
+						} else if (isIntValue(v)) {
+							localSlotIndices[i] = idxInt++;
 						} else {
-							localSlotIndices[i] = idxPrim++;
+							localSlotIndices[i] = idxLong++;
 						}
 					} else {
 						localSlotIndices[i] = -666; // an invalid index ;)
@@ -727,8 +1540,26 @@ public class InstrumentMethod {
 				localSlotIndices = null;
 			}
 
-			numSlots = Math.max(idxPrim, idxObj);
+			numSlots = Math.max(Math.max(idxLong, idxInt), idxObj);
 			numObjSlots = idxObj;
+			numIntSlots = idxInt;
+			numLongSlots = idxLong;
+		}
+
+		/**
+		 * @param local
+		 * @return true if the local may be read after the suspension
+		 */
+		boolean isLive(final int local) {
+			return liveLocals == null || liveLocals.get(local);
+		}
+
+		/**
+		 * @param local
+		 * @return true if the local is stored when suspending and restored when resuming
+		 */
+		boolean isSaved(final int local) {
+			return isLive(local) && !repassedParams.get(local);
 		}
 	}
 
@@ -42,6 +42,7 @@ import org.objectweb.asm.util.CheckClassAdapter;
 import java.io.*;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.Map;
 
 /**
  * <p>Instrumentation ANT task</p>
@@ -57,6 +58,20 @@ import java.util.Iterator;
  * <li>debug - default: false<br>Prints internal debugging information.</li>
  * <li>allowmonitors - default: false<br>Allows the use of synchronized statements - this is DANGEROUS !</li>
  * <li>allowblocking - default: false<br>Allows the use known blocking calls like Thread.sleep, Object.wait etc.</li>
+ * <li>saveonunwind - default: false<br>Saves the state of a method only when a suspension unwinds through a
+ * suspendable call rather than before every suspendable call.</li>
+ * <li>returnonsuspend - default: false<br>Suspends by returning from each method and checking a flag after each
+ * suspendable call rather than by throwing {@link SuspendExecution}.  All suspendable code needs to be instrumented
+ * with this option.</li>
+ * <li>inlinestackaccess - default: false<br>Saves and restores state by accessing the {@link Stack} arrays directly
+ * rather than calling its push and get methods.</li>
+ * <li>stackparameter - default: false<br>Private and static suspendable methods get an overload taking the
+ * {@link Stack} as an extra parameter, which calls from the same class use instead of looking up the stack.</li>
+ * <li>uninstrumentedcopy - default: false<br>Keeps an uninstrumented copy of each suspendable method, which is run
+ * instead when the method is called outside of a coroutine.</li>
+ * <li>frameclasses - default: false<br>Saves the state at each suspension point in an object of a class generated
+ * for it, with a typed field per value, rather than in the {@link Stack} slot arrays.  The frame classes are written
+ * next to the instrumented class.</li>
  * </ul>
  *
  * @author Matthias Mann
@@ -70,6 +85,12 @@ public class InstrumentationTask extends Task {
 	private boolean verbose;
 	private boolean allowMonitors;
 	private boolean allowBlocking;
+	private boolean saveOnUnwind;
+	private boolean returnOnSuspend;
+	private boolean inlineStackAccess;
+	private boolean stackParameter;
+	private boolean uninstrumentedCopy;
+	private boolean frameClasses;
 	private boolean debug;
 	private boolean writeClasses = true;
 
@@ -93,6 +114,30 @@ public class InstrumentationTask extends Task {
 		this.allowBlocking = allowBlocking;
 	}
 
+	public void setSaveOnUnwind(final boolean saveOnUnwind) {
+		this.saveOnUnwind = saveOnUnwind;
+	}
+
+	public void setReturnOnSuspend(final boolean returnOnSuspend) {
+		this.returnOnSuspend = returnOnSuspend;
+	}
+
+	public void setInlineStackAccess(final boolean inlineStackAccess) {
+		this.inlineStackAccess = inlineStackAccess;
+	}
+
+	public void setStackParameter(final boolean stackParameter) {
+		this.stackParameter = stackParameter;
+	}
+
+	public void setUninstrumentedCopy(final boolean uninstrumentedCopy) {
+		this.uninstrumentedCopy = uninstrumentedCopy;
+	}
+
+	public void setFrameClasses(final boolean frameClasses) {
+		this.frameClasses = frameClasses;
+	}
+
 	public void setDebug(final boolean debug) {
 		this.debug = debug;
 	}
@@ -109,6 +154,12 @@ public class InstrumentationTask extends Task {
 		db.setDebug(debug);
 		db.setAllowMonitors(allowMonitors);
 		db.setAllowBlocking(allowBlocking);
+		db.setSaveOnUnwind(saveOnUnwind);
+		db.setReturnOnSuspend(returnOnSuspend);
+		db.setInlineStackAccess(inlineStackAccess);
+		db.setStackParameter(stackParameter);
+		db.setUninstrumentedCopy(uninstrumentedCopy);
+		db.setFrameClasses(frameClasses);
 		db.setLog(new Log() {
 			public void log(final LogLevel level, final String msg, final Object... args) {
 				final int msgLevel;
@@ -207,6 +258,17 @@ public class InstrumentationTask extends Task {
 				} finally {
 					fos.close();
 				}
+				for (final Map.Entry<String, byte[]> frameClass : ic.getFrameClasses().entrySet()) {
+					final String name = frameClass.getKey();
+					final File frameFile =
+							new File(f.getParentFile(), name.substring(name.lastIndexOf('/') + 1) + ".class");
+					final FileOutputStream frameFos = new FileOutputStream(frameFile);
+					try {
+						frameFos.write(frameClass.getValue());
+					} finally {
+						frameFos.close();
+					}
+				}
 			}
 		} catch (final IOException ex) {
 			throw new BuildException("Instrumenting file " + f, ex);
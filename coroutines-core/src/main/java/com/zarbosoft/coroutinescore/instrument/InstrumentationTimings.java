@@ -0,0 +1,55 @@
+package com.zarbosoft.coroutinescore.instrument;
+
+import java.util.Arrays;
+
+/**
+ * Accumulates the time spent in each phase of instrumentation, for benchmarking.  Set with
+ * {@link MethodDatabase#setTimings(InstrumentationTimings)}.  Not thread safe.
+ */
+public class InstrumentationTimings {
+	public enum Phase {
+		/**
+		 * Scanning classes with {@link MethodDatabase#checkClass(java.io.File)}
+		 */
+		CHECK,
+		/**
+		 * The {@link TypeAnalyzer} pass over each suspendable method
+		 */
+		TYPE_ANALYSIS,
+		/**
+		 * The rest of {@link InstrumentClass} and {@link InstrumentMethod}: finding suspensions, liveness and
+		 * generating the instrumented code
+		 */
+		INSTRUMENTATION,
+		/**
+		 * Computing frames and serializing in {@link DBClassWriter}
+		 */
+		WRITING
+	}
+
+	private final long[] nanos = new long[Phase.values().length];
+
+	public void add(final Phase phase, final long elapsed) {
+		nanos[phase.ordinal()] += elapsed;
+	}
+
+	/**
+	 * Attributes time measured within an outer phase to an inner phase instead.
+	 *
+	 * @param outer
+	 * @param inner
+	 * @param elapsed
+	 */
+	public void move(final Phase outer, final Phase inner, final long elapsed) {
+		nanos[outer.ordinal()] -= elapsed;
+		nanos[inner.ordinal()] += elapsed;
+	}
+
+	public long getNanos(final Phase phase) {
+		return nanos[phase.ordinal()];
+	}
+
+	public void clear() {
+		Arrays.fill(nanos, 0);
+	}
+}
@@ -69,7 +69,11 @@ import org.objectweb.asm.util.CheckClassAdapter;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.security.ProtectionDomain;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /*
  * Created on Nov 21, 2010
@@ -105,8 +109,32 @@ public class JavaAgent {
 						db.setAllowBlocking(true);
 						break;
 
+					case 'u':
+						db.setSaveOnUnwind(true);
+						break;
+
+					case 'r':
+						db.setReturnOnSuspend(true);
+						break;
+
+					case 'i':
+						db.setInlineStackAccess(true);
+						break;
+
+					case 's':
+						db.setStackParameter(true);
+						break;
+
+					case 'n':
+						db.setUninstrumentedCopy(true);
+						break;
+
+					case 'f':
+						db.setFrameClasses(true);
+						break;
+
 					default:
-						throw new IllegalStateException("Usage: vdmc (verbose, debug, allow monitors, check class)");
+						throw new IllegalStateException("Usage: vdmcburisnf (verbose, debug, allow monitors, check class, allow blocking, save on unwind, return on suspend, inline stack access, stack parameter, uninstrumented copy, frame classes)");
 				}
 			}
 		}
@@ -123,25 +151,66 @@ public class JavaAgent {
 			}
 		});
 
-		instrumentation.addTransformer(new Transformer(db, checkArg));
+		// Frame classes are defined in the loader of the class they belong to, which needs access to a protected
+		// method
+		Method defineClass = null;
+		if (db.isFrameClasses()) {
+			try {
+				defineClass = ClassLoader.class.getDeclaredMethod("defineClass",
+						String.class,
+						byte[].class,
+						int.class,
+						int.class,
+						ProtectionDomain.class
+				);
+				defineClass.setAccessible(true);
+			} catch (final Exception ex) {
+				db.log(LogLevel.WARNING,
+						"Can't define frame classes, instrumenting without them (on Java 16 and later, pass " +
+								"--add-opens java.base/java.lang=ALL-UNNAMED): %s",
+						ex
+				);
+				db.setFrameClasses(false);
+				defineClass = null;
+			}
+		}
+
+		instrumentation.addTransformer(new Transformer(db, checkArg, defineClass));
 	}
 
-	static byte[] instrumentClass(final MethodDatabase db, final byte[] data, final boolean check) {
+	/**
+	 * @param db
+	 * @param data
+	 * @param check
+	 * @param frameClasses receives the generated frame classes, by internal name, or null to save state in slots
+	 * @return the instrumented class
+	 */
+	static byte[] instrumentClass(
+			final MethodDatabase db, final byte[] data, final boolean check, final Map<String, byte[]> frameClasses
+	) {
 		final ClassReader r = new ClassReader(data);
 		final ClassWriter cw = new DBClassWriter(db, r);
 		final ClassVisitor cv = check ? new CheckClassAdapter(cw) : cw;
 		final InstrumentClass ic = new InstrumentClass(cv, db, false);
+		if (frameClasses == null) {
+			ic.setFrameClasses(false);
+		}
 		r.accept(ic, ClassReader.SKIP_FRAMES);
+		if (frameClasses != null) {
+			frameClasses.putAll(ic.getFrameClasses());
+		}
 		return cw.toByteArray();
 	}
 
 	private static class Transformer implements ClassFileTransformer {
 		private final MethodDatabase db;
 		private final boolean check;
+		private final Method defineClass;
 
-		public Transformer(final MethodDatabase db, final boolean check) {
+		public Transformer(final MethodDatabase db, final boolean check, final Method defineClass) {
 			this.db = db;
 			this.check = check;
+			this.defineClass = defineClass;
 		}
 
 		@Override
@@ -164,7 +233,31 @@ public class JavaAgent {
 			db.log(LogLevel.INFO, "TRANSFORM: %s", className);
 
 			try {
-				return instrumentClass(db, classfileBuffer, check);
+				// Frame classes can't be defined in the bootstrap loader, and already exist when redefining
+				if (defineClass != null && loader != null && classBeingRedefined == null) {
+					final Map<String, byte[]> frameClasses = new LinkedHashMap<>();
+					final byte[] out = instrumentClass(db, classfileBuffer, check, frameClasses);
+					try {
+						for (final Map.Entry<String, byte[]> frameClass : frameClasses.entrySet()) {
+							final byte[] bytes = frameClass.getValue();
+							defineClass.invoke(loader,
+									frameClass.getKey().replace('/', '.'),
+									bytes,
+									0,
+									bytes.length,
+									protectionDomain
+							);
+						}
+						return out;
+					} catch (final InvocationTargetException ex) {
+						db.log(LogLevel.WARNING,
+								"Can't define frame classes of %s, instrumenting it without them: %s",
+								className,
+								ex.getCause()
+						);
+					}
+				}
+				return instrumentClass(db, classfileBuffer, check, null);
 			} catch (final Exception ex) {
 				db.error("Unable to instrument", ex);
 				return null;
@@ -0,0 +1,142 @@
+package com.zarbosoft.coroutinescore.instrument;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.*;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Backward liveness analysis of the locals of a method.  A local is live before an instruction if some path from
+ * the instruction reads it before writing it.
+ */
+public class LivenessAnalyzer {
+
+	private LivenessAnalyzer() {
+	}
+
+	/**
+	 * @param mn the method to analyze
+	 * @return the locals live before each instruction, indexed like mn.instructions, or null if the method uses
+	 * subroutines and everything must be considered live
+	 */
+	public static BitSet[] analyze(final MethodNode mn) {
+		final InsnList insns = mn.instructions;
+		final int count = insns.size();
+
+		final int[] use = new int[count];
+		final int[] def = new int[count];
+		final int[][] successors = new int[count][];
+		for (int i = 0; i < count; ++i) {
+			final AbstractInsnNode node = insns.get(i);
+			use[i] = -1;
+			def[i] = -1;
+			final int opcode = node.getOpcode();
+			switch (opcode) {
+				case Opcodes.JSR:
+				case Opcodes.RET:
+					return null;
+				case Opcodes.ILOAD:
+				case Opcodes.LLOAD:
+				case Opcodes.FLOAD:
+				case Opcodes.DLOAD:
+				case Opcodes.ALOAD:
+					use[i] = ((VarInsnNode) node).var;
+					break;
+				case Opcodes.ISTORE:
+				case Opcodes.LSTORE:
+				case Opcodes.FSTORE:
+				case Opcodes.DSTORE:
+				case Opcodes.ASTORE:
+					def[i] = ((VarInsnNode) node).var;
+					break;
+				case Opcodes.IINC:
+					use[i] = ((IincInsnNode) node).var;
+					break;
+			}
+			switch (node.getType()) {
+				case AbstractInsnNode.JUMP_INSN: {
+					final int target = insns.indexOf(((JumpInsnNode) node).label);
+					if (opcode == Opcodes.GOTO || i + 1 >= count) {
+						successors[i] = new int[] {target};
+					} else {
+						successors[i] = new int[] {target, i + 1};
+					}
+					break;
+				}
+				case AbstractInsnNode.TABLESWITCH_INSN: {
+					final TableSwitchInsnNode switchNode = (TableSwitchInsnNode) node;
+					successors[i] = switchTargets(insns, switchNode.dflt, switchNode.labels);
+					break;
+				}
+				case AbstractInsnNode.LOOKUPSWITCH_INSN: {
+					final LookupSwitchInsnNode switchNode = (LookupSwitchInsnNode) node;
+					successors[i] = switchTargets(insns, switchNode.dflt, switchNode.labels);
+					break;
+				}
+				default:
+					if ((opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN) ||
+							opcode == Opcodes.ATHROW ||
+							i + 1 >= count) {
+						successors[i] = new int[0];
+					} else {
+						successors[i] = new int[] {i + 1};
+					}
+			}
+		}
+
+		// Locals live at a handler are live throughout the range it covers
+		final BitSet[] handlers = new BitSet[count];
+		for (final TryCatchBlockNode tcb : mn.tryCatchBlocks) {
+			final int handler = insns.indexOf(tcb.handler);
+			for (int i = insns.indexOf(tcb.start); i < insns.indexOf(tcb.end); ++i) {
+				if (handlers[i] == null) {
+					handlers[i] = new BitSet();
+				}
+				handlers[i].set(handler);
+			}
+		}
+
+		final BitSet[] live = new BitSet[count];
+		for (int i = 0; i < count; ++i) {
+			live[i] = new BitSet();
+		}
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int i = count - 1; i >= 0; --i) {
+				final BitSet out = new BitSet();
+				for (final int successor : successors[i]) {
+					out.or(live[successor]);
+				}
+				if (def[i] >= 0) {
+					out.clear(def[i]);
+				}
+				if (use[i] >= 0) {
+					out.set(use[i]);
+				}
+				if (handlers[i] != null) {
+					for (int handler = handlers[i].nextSetBit(0);
+							handler >= 0;
+							handler = handlers[i].nextSetBit(handler + 1)) {
+						out.or(live[handler]);
+					}
+				}
+				if (!out.equals(live[i])) {
+					live[i] = out;
+					changed = true;
+				}
+			}
+		}
+		return live;
+	}
+
+	private static int[] switchTargets(final InsnList insns, final LabelNode dflt, final List<LabelNode> labels) {
+		final int[] out = new int[labels.size() + 1];
+		out[0] = insns.indexOf(dflt);
+		for (int i = 0; i < labels.size(); ++i) {
+			out[i + 1] = insns.indexOf(labels.get(i));
+		}
+		return out;
+	}
+}
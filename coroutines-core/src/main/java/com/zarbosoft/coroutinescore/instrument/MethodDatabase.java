@@ -55,6 +55,13 @@ public class MethodDatabase implements Log {
 	private boolean debug;
 	private boolean allowMonitors;
 	private boolean allowBlocking;
+	private boolean saveOnUnwind;
+	private boolean returnOnSuspend;
+	private boolean inlineStackAccess;
+	private boolean stackParameter;
+	private boolean uninstrumentedCopy;
+	private boolean frameClasses;
+	private InstrumentationTimings timings;
 	private int logLevelMask;
 
 	public MethodDatabase(final ClassLoader classloader) {
@@ -87,6 +94,65 @@ public class MethodDatabase implements Log {
 		this.allowBlocking = allowBlocking;
 	}
 
+	public boolean isSaveOnUnwind() {
+		return saveOnUnwind;
+	}
+
+	public void setSaveOnUnwind(final boolean saveOnUnwind) {
+		this.saveOnUnwind = saveOnUnwind;
+	}
+
+	public boolean isReturnOnSuspend() {
+		return returnOnSuspend;
+	}
+
+	public void setReturnOnSuspend(final boolean returnOnSuspend) {
+		this.returnOnSuspend = returnOnSuspend;
+	}
+
+	public boolean isInlineStackAccess() {
+		return inlineStackAccess;
+	}
+
+	public void setInlineStackAccess(final boolean inlineStackAccess) {
+		this.inlineStackAccess = inlineStackAccess;
+	}
+
+	public boolean isStackParameter() {
+		return stackParameter;
+	}
+
+	public void setStackParameter(final boolean stackParameter) {
+		this.stackParameter = stackParameter;
+	}
+
+	public boolean isUninstrumentedCopy() {
+		return uninstrumentedCopy;
+	}
+
+	public void setUninstrumentedCopy(final boolean uninstrumentedCopy) {
+		this.uninstrumentedCopy = uninstrumentedCopy;
+	}
+
+	public boolean isFrameClasses() {
+		return frameClasses;
+	}
+
+	public void setFrameClasses(final boolean frameClasses) {
+		this.frameClasses = frameClasses;
+	}
+
+	public InstrumentationTimings getTimings() {
+		return timings;
+	}
+
+	/**
+	 * @param timings null unless measuring the time spent in each phase
+	 */
+	public void setTimings(final InstrumentationTimings timings) {
+		this.timings = timings;
+	}
+
 	public Log getLog() {
 		return log;
 	}
@@ -136,6 +202,7 @@ public class MethodDatabase implements Log {
 	}
 
 	public void checkClass(final File f) {
+		final long start = timings != null ? System.nanoTime() : 0;
 		try {
 			final FileInputStream fis = new FileInputStream(f);
 			final CheckInstrumentationVisitor civ = checkFileAndClose(fis, f.getPath());
@@ -156,6 +223,10 @@ public class MethodDatabase implements Log {
 			throw ex;
 		} catch (final Exception ex) {
 			error(f.getPath(), ex);
+		} finally {
+			if (timings != null) {
+				timings.add(InstrumentationTimings.Phase.CHECK, System.nanoTime() - start);
+			}
 		}
 	}
 
@@ -346,6 +417,16 @@ public class MethodDatabase implements Log {
 		}
 	}
 
+	/**
+	 * For classes generated while instrumenting, which can't be looked up yet.
+	 *
+	 * @param className
+	 * @param superClass
+	 */
+	synchronized void recordSuperClass(final String className, final String superClass) {
+		superClasses.put(className, superClass);
+	}
+
 	protected String getDirectSuperClass(final String className) {
 		final ClassEntry entry = getClassEntry(className);
 		if (entry != null && entry != CLASS_NOT_FOUND) {
@@ -0,0 +1,104 @@
+package com.zarbosoft.coroutinescore.instrument;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * The direct memory off-heap stacks park the primitives of suspended coroutines in.  Regions are carved from large
+ * shared slabs in power of two sizes and reused once freed, so parking doesn't allocate direct memory.  Regions are
+ * freed when their stack is unparked or released by {@link com.zarbosoft.coroutinescore.Coroutine#close()}.  Slabs
+ * are kept, so direct memory stays at the most ever parked at once.  Thread safe.
+ */
+public final class OffHeapArena {
+	private static final int SLAB_SHIFT = 20;
+	private static final int SLAB_SIZE = 1 << SLAB_SHIFT;
+	private static final int MIN_SHIFT = 6;
+
+	/**
+	 * Regions of size classes from this up don't fit in a slab
+	 */
+	static final int CLASSES = SLAB_SHIFT - MIN_SHIFT + 1;
+
+	static final OffHeapArena instance = new OffHeapArena();
+
+	/**
+	 * Only appended to, under the lock
+	 */
+	private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+
+	/**
+	 * Bytes used from the last slab
+	 */
+	private int slabTop = SLAB_SIZE;
+
+	/**
+	 * Regions returned by unparked or released stacks, per size class.  A region is the slab index in the upper 32
+	 * bits and the offset in the slab in the lower.
+	 */
+	private final long[][] free = new long[CLASSES][16];
+	private final int[] freeCount = new int[CLASSES];
+
+	private OffHeapArena() {
+	}
+
+	/**
+	 * @return the number of slabs allocated by all off-heap stacks
+	 */
+	public static int getSlabs() {
+		return instance.slabs.length;
+	}
+
+	/**
+	 * @param bytes more than 0
+	 * @return the size class of regions large enough for bytes
+	 */
+	static int sizeClass(final int bytes) {
+		return Math.max(0, 32 - Integer.numberOfLeadingZeros(bytes - 1) - MIN_SHIFT);
+	}
+
+	/**
+	 * @param sizeClass less than CLASSES
+	 * @return a region, reusing a freed one if there is one
+	 */
+	synchronized long allocate(final int sizeClass) {
+		if (freeCount[sizeClass] > 0) {
+			return free[sizeClass][--freeCount[sizeClass]];
+		}
+		final int size = 1 << (MIN_SHIFT + sizeClass);
+		if (slabTop + size > SLAB_SIZE) {
+			final ByteBuffer[] grown = Arrays.copyOf(slabs, slabs.length + 1);
+			grown[slabs.length] = ByteBuffer.allocateDirect(SLAB_SIZE).order(ByteOrder.nativeOrder());
+			slabs = grown;
+			slabTop = 0;
+		}
+		final long region = ((long) (slabs.length - 1) << 32) | slabTop;
+		slabTop += size;
+		return region;
+	}
+
+	/**
+	 * @param region
+	 * @return the slab the region is in - the region starts at offset(region)
+	 */
+	ByteBuffer slab(final long region) {
+		return slabs[(int) (region >>> 32)];
+	}
+
+	static int offset(final long region) {
+		return (int) region;
+	}
+
+	/**
+	 * Returns a region once the stack parked in it has been unparked or released.
+	 *
+	 * @param region
+	 * @param sizeClass
+	 */
+	synchronized void free(final long region, final int sizeClass) {
+		if (freeCount[sizeClass] == free[sizeClass].length) {
+			free[sizeClass] = Arrays.copyOf(free[sizeClass], free[sizeClass].length * 2);
+		}
+		free[sizeClass][freeCount[sizeClass]++] = region;
+	}
+}
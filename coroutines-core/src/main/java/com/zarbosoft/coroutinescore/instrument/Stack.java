@@ -29,9 +29,15 @@
 package com.zarbosoft.coroutinescore.instrument;
 
 import com.zarbosoft.coroutinescore.Coroutine;
+import com.zarbosoft.coroutinescore.CoroutineCarrierThread;
 import com.zarbosoft.coroutinescore.SuspendExecution;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 
 /**
  * Internal Class - DO NOT USE !
@@ -47,82 +53,464 @@ public final class Stack implements Serializable {
 
 	private static final ThreadLocal<Stack> tls = new ThreadLocal<>();
 
+	/**
+	 * A stack for coroutines that haven't suspended yet to run on
+	 */
+	private static final ThreadLocal<Stack> scratch = new ThreadLocal<>();
+
+	/**
+	 * Primitive arrays left by the last off-heap stack to park on this thread
+	 */
+	private static final ThreadLocal<long[]> spareLong = new ThreadLocal<>();
+	private static final ThreadLocal<int[]> spareInt = new ThreadLocal<>();
+
+	/**
+	 * With the segmented strategy the SPs in the method array hold the segment index in the upper bits and the
+	 * offset in the segment in the lower bits
+	 */
+	private static final int SEGMENT_SHIFT = 24;
+	private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+	/**
+	 * Arrays are shrunk after a suspension when they are this many times larger than needed
+	 */
+	private static final int SHRINK_THRESHOLD = 4;
+
 	/**
 	 * sadly this need to be here
 	 */
 	public static SuspendExecution exception_instance_not_for_user_code = SuspendExecution.instance;
 
-	public final Coroutine co;
+	public Coroutine co;
 
+	private final Coroutine.StackStrategy strategy;
+	private final int initialSize;
+	private final int initialMethodSize;
+
+	/**
+	 * The largest capacities since the stack was created or taken for a coroutine, and whether they grew since
+	 * takeGrown() was last called
+	 */
+	private int peakData;
+	private int peakMethod;
+	private boolean grown;
+
+	/**
+	 * For each method: the long SP, the int SP, the object SP and the jump table entry
+	 */
 	private int methodTOS = -1;
 	private int[] method;
 
-	private long[] dataLong;
-	private Object[] dataObject;
+	/**
+	 * Public for methods instrumented with inline stack access
+	 */
+	public long[] dataLong;
+	public int[] dataInt;
+	public Object[] dataObject;
+
+	public transient int curMethodSP;
+	public transient int curMethodIntSP;
+	public transient int curMethodObjSP;
+
+	/**
+	 * The slots of a contiguous stack are [base, limit) of the lane's array.  The base is only nonzero for stacks
+	 * carved from a shared slab, until the lane outgrows its chunk and moves to its own array.
+	 */
+	private int longBase;
+	private int intBase;
+	private int objBase;
+	private int longLimit;
+	private int intLimit;
+	private int objLimit;
 
-	transient int curMethodSP;
+	/**
+	 * Null unless using the segmented strategy
+	 */
+	private Segments longSegments;
+	private Segments intSegments;
+	private Segments objectSegments;
+
+	/**
+	 * With the off-heap strategy, the region holding the saved long and int slots while suspended: a region of an
+	 * OffHeapArena slab, or a buffer of its own if too large for one
+	 */
+	private transient ByteBuffer offHeap;
+	private transient long offHeapRegion;
+	private transient int offHeapClass;
+	private boolean parked;
+	private int parkedLong;
+	private int parkedInt;
+
+	private boolean suspending;
+
+	/**
+	 * True from a suspension until the suspended methods have been reentered
+	 */
+	private transient boolean resuming;
 
 	public Stack(final Coroutine co, final int stackSize) {
-		if (stackSize <= 0) {
+		this(co, stackSize, Coroutine.StackStrategy.CONTIGUOUS);
+	}
+
+	public Stack(final Coroutine co, final int stackSize, final Coroutine.StackStrategy strategy) {
+		this(co, stackSize, 8, strategy);
+	}
+
+	public Stack(
+			final Coroutine co, final int stackSize, final int methodSize, final Coroutine.StackStrategy strategy
+	) {
+		if (stackSize <= 0 || (strategy == Coroutine.StackStrategy.SEGMENTED && stackSize > SEGMENT_MASK)) {
 			throw new IllegalArgumentException("stackSize");
 		}
 		this.co = co;
-		this.method = new int[8];
+		this.strategy = strategy;
+		this.initialSize = stackSize;
+		this.initialMethodSize = Math.max(8, methodSize);
+		this.peakData = stackSize;
+		this.peakMethod = initialMethodSize;
+		this.method = new int[initialMethodSize];
 		this.dataLong = new long[stackSize];
+		this.dataInt = new int[stackSize];
 		this.dataObject = new Object[stackSize];
+		this.longLimit = stackSize;
+		this.intLimit = stackSize;
+		this.objLimit = stackSize;
+		if (strategy == Coroutine.StackStrategy.SEGMENTED) {
+			longSegments = new Segments(dataLong);
+			intSegments = new Segments(dataInt);
+			objectSegments = new Segments(dataObject);
+		}
+	}
+
+	/**
+	 * Creates a contiguous stack using the slots from base to base + stackSize of shared slabs.  Lanes that outgrow
+	 * the slots move to their own arrays.
+	 *
+	 * @param co
+	 * @param longSlab
+	 * @param intSlab
+	 * @param objectSlab
+	 * @param base
+	 * @param stackSize
+	 */
+	public Stack(
+			final Coroutine co,
+			final long[] longSlab,
+			final int[] intSlab,
+			final Object[] objectSlab,
+			final int base,
+			final int stackSize
+	) {
+		if (stackSize <= 0 ||
+				base < 0 ||
+				base + stackSize > longSlab.length ||
+				base + stackSize > intSlab.length ||
+				base + stackSize > objectSlab.length) {
+			throw new IllegalArgumentException("stackSize");
+		}
+		this.co = co;
+		this.strategy = Coroutine.StackStrategy.CONTIGUOUS;
+		this.initialSize = stackSize;
+		this.initialMethodSize = 8;
+		this.peakData = stackSize;
+		this.peakMethod = initialMethodSize;
+		this.method = new int[initialMethodSize];
+		this.dataLong = longSlab;
+		this.dataInt = intSlab;
+		this.dataObject = objectSlab;
+		this.longBase = base;
+		this.intBase = base;
+		this.objBase = base;
+		this.longLimit = base + stackSize;
+		this.intLimit = base + stackSize;
+		this.objLimit = base + stackSize;
+		setBases();
 	}
 
+	/**
+	 * Called at the start of every instrumented method.
+	 *
+	 * @return the stack of the coroutine running on this thread, or null
+	 */
 	public static Stack getStack() {
+		final Thread thread = Thread.currentThread();
+		if (thread instanceof CoroutineCarrierThread) {
+			return ((CoroutineCarrierThread) thread).stack;
+		}
 		return tls.get();
 	}
 
 	public static void setStack(final Stack s) {
+		final Thread thread = Thread.currentThread();
+		if (thread instanceof CoroutineCarrierThread) {
+			((CoroutineCarrierThread) thread).stack = s;
+			return;
+		}
 		tls.set(s);
 	}
 
 	/**
-	 * Called before a method is called.
+	 * Takes this thread's scratch stack if it's compatible, otherwise creates a new stack.  Return it with
+	 * releaseScratch() if the coroutine doesn't suspend.
+	 *
+	 * @param co
+	 * @param stackSize
+	 * @param methodSize
+	 * @param strategy
+	 * @return a stack for the coroutine
+	 */
+	public static Stack takeScratch(
+			final Coroutine co, final int stackSize, final int methodSize, final Coroutine.StackStrategy strategy
+	) {
+		final Stack s = scratch.get();
+		if (s != null &&
+				s.initialSize == stackSize &&
+				s.initialMethodSize == Math.max(8, methodSize) &&
+				s.strategy == strategy) {
+			scratch.set(null);
+			s.co = co;
+			s.peakMethod = s.method.length;
+			s.peakData = s.capacity();
+			s.grown = false;
+			return s;
+		}
+		return new Stack(co, stackSize, methodSize, strategy);
+	}
+
+	/**
+	 * @return the largest data capacity since the stack was created or taken for the current coroutine
+	 */
+	public int getPeakData() {
+		return peakData;
+	}
+
+	/**
+	 * @return the largest method capacity since the stack was created or taken for the current coroutine
+	 */
+	public int getPeakMethod() {
+		return peakMethod;
+	}
+
+	/**
+	 * @return true if the stack grew since it was created, taken for the current coroutine or this was last called
+	 */
+	public boolean takeGrown() {
+		final boolean out = grown;
+		grown = false;
+		return out;
+	}
+
+	private int capacity() {
+		if (longSegments != null) {
+			return Math.max(Math.max(longSegments.capacity(), intSegments.capacity()), objectSegments.capacity());
+		}
+		return Math.max(Math.max(longLimit - longBase, intLimit - intBase), objLimit - objBase);
+	}
+
+	/**
+	 * Makes a stack whose coroutine finished without suspending this thread's scratch stack.
+	 *
+	 * @param s
+	 */
+	public static void releaseScratch(final Stack s) {
+		s.reset();
+		// Back to the initial sizes, so the next coroutine's growth is its own
+		s.compact();
+		s.co = null;
+		scratch.set(s);
+	}
+
+	/**
+	 * Called before a method is called by code instrumented before primitives and objects had separate stack
+	 * pointers.
 	 *
 	 * @param entry    the entry point in the method for resume
 	 * @param numSlots the number of required stack slots for storing the state
 	 */
 	public final void pushMethodAndReserveSpace(final int entry, final int numSlots) {
+		pushMethodAndReserveSpace(entry, numSlots, numSlots, numSlots);
+	}
+
+	/**
+	 * Called before a method is called.
+	 *
+	 * @param entry        the entry point in the method for resume
+	 * @param numLongSlots the number of required long and double stack slots for storing the state
+	 * @param numIntSlots  the number of required 32 bit primitive stack slots for storing the state
+	 * @param numObjSlots  the number of required object stack slots for storing the state
+	 */
+	public final void pushMethodAndReserveSpace(
+			final int entry, final int numLongSlots, final int numIntSlots, final int numObjSlots
+	) {
 		final int methodIdx = methodTOS;
 
-		if (method.length - methodIdx < 2) {
+		// Room for this method's entry and the callee's SPs and entry
+		if (method.length - methodIdx < 5) {
 			growMethodStack();
 		}
 
-		curMethodSP = method[methodIdx - 1];
-		final int dataTOS = curMethodSP + numSlots;
+		if (longSegments != null) {
+			method[methodIdx] = entry;
+			method[methodIdx + 1] = reserve(longSegments, methodIdx - 3, numLongSlots);
+			method[methodIdx + 2] = reserve(intSegments, methodIdx - 2, numIntSlots);
+			method[methodIdx + 3] = reserve(objectSegments, methodIdx - 1, numObjSlots);
+			selectLong(method[methodIdx - 3]);
+			selectInt(method[methodIdx - 2]);
+			selectObject(method[methodIdx - 1]);
+			return;
+		}
+
+		curMethodSP = method[methodIdx - 3];
+		curMethodIntSP = method[methodIdx - 2];
+		curMethodObjSP = method[methodIdx - 1];
+		final int dataTOS = curMethodSP + numLongSlots;
+		final int intTOS = curMethodIntSP + numIntSlots;
+		final int objTOS = curMethodObjSP + numObjSlots;
 
 		method[methodIdx] = entry;
 		method[methodIdx + 1] = dataTOS;
+		method[methodIdx + 2] = intTOS;
+		method[methodIdx + 3] = objTOS;
+
+		//System.out.println("entry="+entry+" sp="+curMethodSP+" tos="+dataTOS+" intsp="+curMethodIntSP+" inttos="+intTOS+" objsp="+curMethodObjSP+" objtos="+objTOS+" nr="+methodIdx);
+
+		if (dataTOS > longLimit) {
+			growLong(methodIdx, dataTOS);
+		}
+		if (intTOS > intLimit) {
+			growInt(methodIdx, intTOS);
+		}
+		if (objTOS > objLimit) {
+			growObject(methodIdx, objTOS);
+		}
+	}
 
-		//System.out.println("entry="+entry+" size="+size+" sp="+curMethodSP+" tos="+dataTOS+" nr="+methodIdx);
+	private void growLong(final int methodIdx, final int required) {
+		final int base = longBase;
+		final int size = longLimit - base;
+		final long[] grown = new long[grownSize(size, required - base)];
+		System.arraycopy(dataLong, base, grown, 0, size);
+		dataLong = grown;
+		rebase(methodIdx, 0, base);
+		curMethodSP -= base;
+		longBase = 0;
+		longLimit = grown.length;
+		peakData = Math.max(peakData, grown.length);
+		this.grown = true;
+	}
+
+	private void growInt(final int methodIdx, final int required) {
+		final int base = intBase;
+		final int size = intLimit - base;
+		final int[] grown = new int[grownSize(size, required - base)];
+		System.arraycopy(dataInt, base, grown, 0, size);
+		dataInt = grown;
+		rebase(methodIdx, 1, base);
+		curMethodIntSP -= base;
+		intBase = 0;
+		intLimit = grown.length;
+		peakData = Math.max(peakData, grown.length);
+		this.grown = true;
+	}
 
-		if (dataTOS > dataObject.length) {
-			growDataStack(dataTOS);
+	private void growObject(final int methodIdx, final int required) {
+		final int base = objBase;
+		final int size = objLimit - base;
+		final Object[] grown = new Object[grownSize(size, required - base)];
+		System.arraycopy(dataObject, base, grown, 0, size);
+		// The chunk's slots are cleared when it's returned to the slab
+		dataObject = grown;
+		rebase(methodIdx, 2, base);
+		curMethodObjSP -= base;
+		objBase = 0;
+		objLimit = grown.length;
+		peakData = Math.max(peakData, grown.length);
+		this.grown = true;
+	}
+
+	/**
+	 * Makes one lane's SPs in the method array, up to the ones just pushed, relative to a new array.
+	 *
+	 * @param methodIdx the TOS when the method was pushed
+	 * @param lane      0 for long, 1 for int, 2 for object
+	 * @param base      the old base
+	 */
+	private void rebase(final int methodIdx, final int lane, final int base) {
+		if (base == 0) {
+			return;
+		}
+		for (int i = lane; i <= methodIdx + 1 + lane; i += 4) {
+			method[i] -= base;
 		}
 	}
 
+	private void setBases() {
+		method[0] = longBase;
+		method[1] = intBase;
+		method[2] = objBase;
+	}
+
 	/**
 	 * Called at the end of a method.
-	 * Undoes the effects of nextMethodEntry() and clears the dataObject[] array
+	 * Undoes the effects of nextMethodEntry() or enterMethod() and clears the dataObject[] array
 	 * to allow the values to be GCed.
 	 */
 	public final void popMethod() {
 		final int idx = methodTOS;
 		method[idx] = 0;
-		final int oldSP = curMethodSP;
-		final int newSP = method[idx - 1];
-		curMethodSP = newSP;
-		methodTOS = idx - 2;
-		for (int i = newSP; i < oldSP; i++) {
+		if (objectSegments != null) {
+			popMethodSegmented(idx);
+			return;
+		}
+		final int oldObjSP = curMethodObjSP;
+		final int newObjSP = method[idx - 1];
+		curMethodSP = method[idx - 3];
+		curMethodIntSP = method[idx - 2];
+		curMethodObjSP = newObjSP;
+		methodTOS = idx - 4;
+		for (int i = newObjSP; i < oldObjSP; i++) {
 			dataObject[i] = null;
 		}
 	}
 
+	/**
+	 * Called when a suspension unwinds through a method.
+	 * Makes the slots reserved by the last pushMethodAndReserveSpace() of the method current again, so
+	 * that methods which only save their state while unwinding can store it, and steps back to the calling
+	 * method without clearing the jump table entry.
+	 */
+	public final void unwindMethod() {
+		final int idx = methodTOS;
+		if (longSegments != null) {
+			selectLong(method[idx - 3]);
+			selectInt(method[idx - 2]);
+			selectObject(method[idx - 1]);
+			methodTOS = idx - 4;
+			return;
+		}
+		curMethodSP = method[idx - 3];
+		curMethodIntSP = method[idx - 2];
+		curMethodObjSP = method[idx - 1];
+		methodTOS = idx - 4;
+	}
+
+	/**
+	 * Checked at the start of every instrumented method.
+	 *
+	 * @return true if the method may be one of the suspended methods and needs to call nextMethodEntry()
+	 */
+	public final boolean isResuming() {
+		return resuming;
+	}
+
+	/**
+	 * Called instead of nextMethodEntry() at the start of methods that aren't resuming.  The SPs are only needed
+	 * once the method calls pushMethodAndReserveSpace(), which sets them.
+	 */
+	public final void enterMethod() {
+		methodTOS += 4;
+	}
+
 	/**
 	 * Returns the jump table entry for the next method on the stack when resuming a coroutine.
 	 *
@@ -130,17 +518,31 @@ public final class Stack implements Serializable {
 	 */
 	public final int nextMethodEntry() {
 		int idx = methodTOS;
-		curMethodSP = method[++idx];
-		methodTOS = ++idx;
-		return method[idx];
+		if (longSegments != null) {
+			selectLong(method[++idx]);
+			selectInt(method[++idx]);
+			selectObject(method[++idx]);
+			methodTOS = ++idx;
+		} else {
+			curMethodSP = method[++idx];
+			curMethodIntSP = method[++idx];
+			curMethodObjSP = method[++idx];
+			methodTOS = ++idx;
+		}
+		final int entry = method[idx];
+		if (entry == 0 || method[idx + 4] == 0) {
+			// The method that suspended, or past it with code that always calls this
+			resuming = false;
+		}
+		return entry;
 	}
 
 	public static void push(final int value, final Stack s, final int idx) {
-		s.dataLong[s.curMethodSP + idx] = value;
+		s.dataInt[s.curMethodIntSP + idx] = value;
 	}
 
 	public static void push(final float value, final Stack s, final int idx) {
-		s.dataLong[s.curMethodSP + idx] = Float.floatToRawIntBits(value);
+		s.dataInt[s.curMethodIntSP + idx] = Float.floatToRawIntBits(value);
 	}
 
 	public static void push(final long value, final Stack s, final int idx) {
@@ -152,15 +554,15 @@ public final class Stack implements Serializable {
 	}
 
 	public static void push(final Object value, final Stack s, final int idx) {
-		s.dataObject[s.curMethodSP + idx] = value;
+		s.dataObject[s.curMethodObjSP + idx] = value;
 	}
 
 	public final int getInt(final int idx) {
-		return (int) dataLong[curMethodSP + idx];
+		return dataInt[curMethodIntSP + idx];
 	}
 
 	public final float getFloat(final int idx) {
-		return Float.intBitsToFloat((int) dataLong[curMethodSP + idx]);
+		return Float.intBitsToFloat(dataInt[curMethodIntSP + idx]);
 	}
 
 	public final long getLong(final int idx) {
@@ -172,11 +574,238 @@ public final class Stack implements Serializable {
 	}
 
 	public final Object getObject(final int idx) {
-		return dataObject[curMethodSP + idx];
+		return dataObject[curMethodObjSP + idx];
+	}
+
+	/**
+	 * Called instead of throwing the SuspendExecution by methods instrumented to return when suspending.
+	 */
+	public final void suspend() {
+		suspending = true;
+	}
+
+	/**
+	 * Checked after each suspendable call by methods instrumented to return when suspending.
+	 *
+	 * @return true if the called method returned because the coroutine is suspending
+	 */
+	public final boolean isSuspending() {
+		return suspending;
 	}
 
 	public final void resumeStack() {
 		methodTOS = -1;
+		suspending = false;
+		resuming = method[3] != 0;
+		final boolean oversized;
+		if (longSegments != null) {
+			oversized = longSegments.arrays.length > 2 ||
+					intSegments.arrays.length > 2 ||
+					objectSegments.arrays.length > 2;
+		} else {
+			oversized = longLimit - longBase > SHRINK_THRESHOLD * initialSize ||
+					intLimit - intBase > SHRINK_THRESHOLD * initialSize ||
+					objLimit - objBase > SHRINK_THRESHOLD * initialSize;
+		}
+		if (oversized || method.length > SHRINK_THRESHOLD * initialMethodSize) {
+			trim(SHRINK_THRESHOLD, 2);
+		}
+	}
+
+	/**
+	 * With the off-heap strategy, moves the saved primitives of a suspended coroutine to a region of direct memory
+	 * and leaves the arrays for the next coroutine to run on this thread.  Does nothing otherwise.
+	 */
+	public final void park() {
+		if (strategy != Coroutine.StackStrategy.OFF_HEAP || parked) {
+			return;
+		}
+		final int tosIdx = liveTOS();
+		final int longUsed = method[tosIdx];
+		final int intUsed = method[tosIdx + 1];
+		final int bytes = longUsed * 8 + intUsed * 4;
+		if (bytes > 0) {
+			offHeapClass = OffHeapArena.sizeClass(bytes);
+			int at;
+			if (offHeapClass < OffHeapArena.CLASSES) {
+				offHeapRegion = OffHeapArena.instance.allocate(offHeapClass);
+				offHeap = OffHeapArena.instance.slab(offHeapRegion);
+				at = OffHeapArena.offset(offHeapRegion);
+			} else {
+				offHeap = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+				at = 0;
+			}
+			for (int i = 0; i < longUsed; ++i, at += 8) {
+				offHeap.putLong(at, dataLong[i]);
+			}
+			for (int i = 0; i < intUsed; ++i, at += 4) {
+				offHeap.putInt(at, dataInt[i]);
+			}
+		}
+		parked = true;
+		parkedLong = longUsed;
+		parkedInt = intUsed;
+		spareLong.set(dataLong);
+		spareInt.set(dataInt);
+		dataLong = null;
+		dataInt = null;
+	}
+
+	/**
+	 * Undoes park() before the coroutine resumes, returning the region to the OffHeapArena.
+	 */
+	public final void unpark() {
+		if (!parked) {
+			return;
+		}
+		final long[] longs = spareLong.get();
+		if (longs != null && longs.length >= parkedLong) {
+			spareLong.set(null);
+			dataLong = longs;
+		} else {
+			dataLong = new long[longLimit];
+		}
+		longLimit = dataLong.length;
+		final int[] ints = spareInt.get();
+		if (ints != null && ints.length >= parkedInt) {
+			spareInt.set(null);
+			dataInt = ints;
+		} else {
+			dataInt = new int[intLimit];
+		}
+		intLimit = dataInt.length;
+		if (offHeap != null) {
+			int at = parkedOffset();
+			for (int i = 0; i < parkedLong; ++i, at += 8) {
+				dataLong[i] = offHeap.getLong(at);
+			}
+			for (int i = 0; i < parkedInt; ++i, at += 4) {
+				dataInt[i] = offHeap.getInt(at);
+			}
+		}
+		release();
+	}
+
+	/**
+	 * Returns the region of a parked stack to the OffHeapArena without restoring the primitives saved in it - for
+	 * coroutines that won't be resumed.  Does nothing if the stack isn't parked.
+	 */
+	public final void release() {
+		if (!parked) {
+			return;
+		}
+		if (offHeap != null) {
+			if (offHeapClass < OffHeapArena.CLASSES) {
+				OffHeapArena.instance.free(offHeapRegion, offHeapClass);
+			}
+			offHeap = null;
+		}
+		parked = false;
+	}
+
+	private int parkedOffset() {
+		return offHeapClass < OffHeapArena.CLASSES ? OffHeapArena.offset(offHeapRegion) : 0;
+	}
+
+	/**
+	 * A parked stack is written with its primitives read from the region, leaving it parked.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	private void writeObject(final java.io.ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		if (parked && offHeap != null) {
+			int at = parkedOffset();
+			for (int i = 0; i < parkedLong; ++i, at += 8) {
+				out.writeLong(offHeap.getLong(at));
+			}
+			for (int i = 0; i < parkedInt; ++i, at += 4) {
+				out.writeInt(offHeap.getInt(at));
+			}
+		}
+	}
+
+	/**
+	 * A stack written parked is read back into arrays.
+	 *
+	 * @param in
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	private void readObject(final java.io.ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		if (parked) {
+			dataLong = new long[longLimit];
+			dataInt = new int[intLimit];
+			for (int i = 0; i < parkedLong; ++i) {
+				dataLong[i] = in.readLong();
+			}
+			for (int i = 0; i < parkedInt; ++i) {
+				dataInt[i] = in.readInt();
+			}
+			parked = false;
+		}
+		resuming = method[3] != 0;
+	}
+
+	/**
+	 * Prepares the stack of a finished coroutine to run a new one.
+	 */
+	public final void reset() {
+		Arrays.fill(method, 0);
+		setBases();
+		resumeStack();
+	}
+
+	/**
+	 * Shrinks the arrays to what the suspended methods need.  Must not be called while the coroutine is running.
+	 */
+	public final void compact() {
+		trim(1, 1);
+	}
+
+	/**
+	 * Shrinks arrays that are more than threshold times larger than the suspended methods need to slack times what
+	 * they need, never below the initial size.
+	 *
+	 * @param threshold
+	 * @param slack
+	 */
+	private void trim(final int threshold, final int slack) {
+		final int tosIdx = liveTOS();
+
+		final int methodNeeded = Math.max(initialMethodSize, tosIdx + 4);
+		if (method.length > threshold * methodNeeded) {
+			method = Util.copyOf(method, Math.min(method.length, slack * methodNeeded));
+		}
+
+		if (longSegments != null) {
+			// Keep one spare segment unless compacting
+			final int spare = slack - 1;
+			longSegments.drop((method[tosIdx] >>> SEGMENT_SHIFT) + spare);
+			intSegments.drop((method[tosIdx + 1] >>> SEGMENT_SHIFT) + spare);
+			objectSegments.drop((method[tosIdx + 2] >>> SEGMENT_SHIFT) + spare);
+			return;
+		}
+
+		// Lanes still in a slab chunk are never larger than the initial size, so only lanes in their own arrays
+		// are trimmed.  Parked lanes are only as large as needed.
+		final int longNeeded = Math.max(initialSize, method[tosIdx]);
+		if (longBase == 0 && !parked && longLimit > threshold * longNeeded) {
+			dataLong = Util.copyOf(dataLong, Math.min(longLimit, slack * longNeeded));
+			longLimit = dataLong.length;
+		}
+		final int intNeeded = Math.max(initialSize, method[tosIdx + 1]);
+		if (intBase == 0 && !parked && intLimit > threshold * intNeeded) {
+			dataInt = Util.copyOf(dataInt, Math.min(intLimit, slack * intNeeded));
+			intLimit = dataInt.length;
+		}
+		final int objNeeded = Math.max(initialSize, method[tosIdx + 2]);
+		if (objBase == 0 && objLimit > threshold * objNeeded) {
+			dataObject = Util.copyOf(dataObject, Math.min(objLimit, slack * objNeeded));
+			objLimit = dataObject.length;
+		}
 	}
     
     /* DEBUGGING CODE
@@ -191,19 +820,159 @@ public final class Stack implements Serializable {
     }
     */
 
-	private void growDataStack(final int required) {
-		int newSize = dataObject.length;
+	/**
+	 * Methods that returned have their entry cleared, so the suspended methods are the ones before the first
+	 * cleared entry.
+	 *
+	 * @return the index in the method array of the SPs after the suspended methods' slots
+	 */
+	private int liveTOS() {
+		int tosIdx = 0;
+		while (tosIdx + 3 < method.length && method[tosIdx + 3] != 0) {
+			tosIdx += 4;
+		}
+		return tosIdx;
+	}
+
+	/**
+	 * Moves the method's slots to the start of the next segment if they don't fit in the current one.
+	 *
+	 * @param segments
+	 * @param spIdx    the index of the method's SP in the method array
+	 * @param numSlots
+	 * @return the TOS after the method's slots
+	 */
+	private int reserve(final Segments segments, final int spIdx, final int numSlots) {
+		int sp = method[spIdx];
+		final int segment = sp >>> SEGMENT_SHIFT;
+		if ((sp & SEGMENT_MASK) + numSlots > segments.lengths[segment]) {
+			sp = segments.ensure(segment + 1, numSlots) << SEGMENT_SHIFT;
+			method[spIdx] = sp;
+			final int capacity = segments.capacity();
+			if (capacity > peakData) {
+				peakData = capacity;
+				grown = true;
+			}
+		}
+		return sp + numSlots;
+	}
+
+	private void selectLong(final int sp) {
+		final int segment = sp >>> SEGMENT_SHIFT;
+		if (segment != longSegments.current) {
+			longSegments.current = segment;
+			dataLong = (long[]) longSegments.arrays[segment];
+		}
+		curMethodSP = sp & SEGMENT_MASK;
+	}
+
+	private void selectInt(final int sp) {
+		final int segment = sp >>> SEGMENT_SHIFT;
+		if (segment != intSegments.current) {
+			intSegments.current = segment;
+			dataInt = (int[]) intSegments.arrays[segment];
+		}
+		curMethodIntSP = sp & SEGMENT_MASK;
+	}
+
+	private void selectObject(final int sp) {
+		final int segment = sp >>> SEGMENT_SHIFT;
+		if (segment != objectSegments.current) {
+			objectSegments.current = segment;
+			dataObject = (Object[]) objectSegments.arrays[segment];
+		}
+		curMethodObjSP = sp & SEGMENT_MASK;
+	}
+
+	private void popMethodSegmented(final int idx) {
+		final int newObjSP = method[idx - 1];
+		final int segment = newObjSP >>> SEGMENT_SHIFT;
+		// If a callee moved to the next segment this method's slots may extend to the end of the segment
+		final Object[] data = (Object[]) objectSegments.arrays[segment];
+		final int oldObjSP = segment == objectSegments.current ? curMethodObjSP : data.length;
+		for (int i = newObjSP & SEGMENT_MASK; i < oldObjSP; i++) {
+			data[i] = null;
+		}
+		selectLong(method[idx - 3]);
+		selectInt(method[idx - 2]);
+		selectObject(newObjSP);
+		methodTOS = idx - 4;
+	}
+
+	/**
+	 * The arrays of one lane of a segmented stack.  Each segment is at least twice the size of the previous one.
+	 */
+	private static final class Segments implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		Object[] arrays;
+		int[] lengths;
+		int current;
+
+		Segments(final Object first) {
+			arrays = new Object[] {first};
+			lengths = new int[] {Array.getLength(first)};
+		}
+
+		/**
+		 * @param segment
+		 * @param required
+		 * @return segment
+		 */
+		int ensure(final int segment, final int required) {
+			if (segment >= arrays.length) {
+				if (segment > (Integer.MAX_VALUE >>> SEGMENT_SHIFT)) {
+					throw new IllegalStateException("Too many stack segments");
+				}
+				arrays = Util.copyOf(arrays, arrays.length * 2);
+				lengths = Util.copyOf(lengths, arrays.length);
+			}
+			if (arrays[segment] != null && lengths[segment] >= required) {
+				return segment;
+			}
+			final int size = Math.min(SEGMENT_MASK, Math.max(lengths[segment - 1] * 2, required));
+			arrays[segment] = Array.newInstance(arrays[0].getClass().getComponentType(), size);
+			lengths[segment] = size;
+			return segment;
+		}
+
+		int capacity() {
+			int total = 0;
+			for (int i = 0; i < arrays.length; ++i) {
+				if (arrays[i] != null) {
+					total += lengths[i];
+				}
+			}
+			return total;
+		}
+
+		/**
+		 * Releases the segments after last, except the current one.
+		 *
+		 * @param last
+		 */
+		void drop(final int last) {
+			final int keep = Math.max(last, current) + 1;
+			if (keep < arrays.length) {
+				arrays = Util.copyOf(arrays, keep);
+				lengths = Util.copyOf(lengths, keep);
+			}
+		}
+	}
+
+	private static int grownSize(final int size, final int required) {
+		int newSize = size;
 		do {
 			newSize *= 2;
 		} while (newSize < required);
-
-		dataLong = Util.copyOf(dataLong, newSize);
-		dataObject = Util.copyOf(dataObject, newSize);
+		return newSize;
 	}
 
 	private void growMethodStack() {
 		final int newSize = method.length * 2;
 
 		method = Util.copyOf(method, newSize);
+		peakMethod = Math.max(peakMethod, newSize);
+		grown = true;
 	}
 }
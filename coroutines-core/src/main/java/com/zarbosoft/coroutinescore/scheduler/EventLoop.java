@@ -0,0 +1,198 @@
+package com.zarbosoft.coroutinescore.scheduler;
+
+import com.zarbosoft.coroutinescore.Coroutine;
+import com.zarbosoft.coroutinescore.SuspendExecution;
+import com.zarbosoft.coroutinescore.SuspendableRunnable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs coroutines on a single thread.  Each tick resumes the ready coroutines, up to a limit, then polls for I/O
+ * events - blocking if nothing is ready.  Coroutines resumed from the loop's own thread go straight to the ready
+ * queue; other threads go through a lock-free inbox.
+ * <p>
+ * Run it on a {@link com.zarbosoft.coroutinescore.CoroutineCarrierThread} for the fastest suspendable calls.
+ */
+public class EventLoop implements Runnable {
+	private static final ThreadLocal<EventLoop> current = new ThreadLocal<>();
+
+	/**
+	 * Parks the loop thread when there are no I/O events to wait for
+	 */
+	private final class ParkingPoller implements Poller {
+		@Override
+		public void poll(final EventLoop loop, final boolean block) {
+			if (block) {
+				LockSupport.park(EventLoop.this);
+			}
+		}
+
+		@Override
+		public void wakeup() {
+			final Thread thread = EventLoop.this.thread;
+			if (thread != null) {
+				LockSupport.unpark(thread);
+			}
+		}
+	}
+
+	private final int maxPerTick;
+	private final Poller poller;
+
+	/**
+	 * Only touched by the loop thread
+	 */
+	private final ArrayDeque<Coroutine> ready = new ArrayDeque<>();
+	private final HashSet<Coroutine> queued = new HashSet<>();
+
+	private final ConcurrentLinkedQueue<Coroutine> inbox = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean sleeping = new AtomicBoolean();
+	private volatile Thread thread;
+	private volatile boolean stopped;
+
+	public EventLoop() {
+		this(Integer.MAX_VALUE, null);
+	}
+
+	/**
+	 * @param maxPerTick the most coroutines to resume between polls
+	 * @param poller     waits for I/O events, or null if nothing but coroutines resume coroutines
+	 */
+	public EventLoop(final int maxPerTick, final Poller poller) {
+		if (maxPerTick <= 0) {
+			throw new IllegalArgumentException("maxPerTick");
+		}
+		this.maxPerTick = maxPerTick;
+		this.poller = poller == null ? new ParkingPoller() : poller;
+	}
+
+	/**
+	 * @return the event loop running on the current thread, or null
+	 */
+	public static EventLoop current() {
+		return current.get();
+	}
+
+	/**
+	 * Creates a coroutine and resumes it.
+	 *
+	 * @param runnable the SuspendableRunnable for the Coroutine.
+	 * @return the new coroutine
+	 */
+	public Coroutine spawn(final SuspendableRunnable runnable) {
+		final Coroutine coroutine = new Coroutine(runnable);
+		resume(coroutine);
+		return coroutine;
+	}
+
+	/**
+	 * Queues a new or suspended coroutine to run on the loop.  Can be called from any thread.  Resuming a coroutine
+	 * that's already queued does nothing.
+	 *
+	 * @param coroutine
+	 */
+	public void resume(final Coroutine coroutine) {
+		if (Thread.currentThread() == thread) {
+			enqueue(coroutine);
+			return;
+		}
+		inbox.add(coroutine);
+		if (sleeping.get()) {
+			poller.wakeup();
+		}
+	}
+
+	/**
+	 * Lets the other ready coroutines run, then continues.  Call from a coroutine running on this loop.
+	 *
+	 * @throws SuspendExecution
+	 */
+	public void defer() throws SuspendExecution {
+		if (Thread.currentThread() != thread) {
+			throw new IllegalStateException("Not called from the event loop thread");
+		}
+		final Coroutine coroutine = Coroutine.getActiveCoroutine();
+		if (coroutine == null) {
+			throw new IllegalStateException("Not called from a coroutine");
+		}
+		enqueue(coroutine);
+		Coroutine.yield();
+	}
+
+	/**
+	 * Makes {@link #run()} return after the current tick.  Can be called from any thread.
+	 */
+	public void stop() {
+		stopped = true;
+		poller.wakeup();
+	}
+
+	/**
+	 * Runs the loop on the current thread until {@link #stop()} is called.
+	 */
+	@Override
+	public void run() {
+		if (thread != null) {
+			throw new IllegalStateException("Event loop is already running");
+		}
+		thread = Thread.currentThread();
+		final EventLoop oldLoop = current.get();
+		current.set(this);
+		try {
+			while (!stopped) {
+				tick();
+			}
+		} finally {
+			current.set(oldLoop);
+			thread = null;
+		}
+	}
+
+	private void tick() {
+		Coroutine coroutine;
+		while ((coroutine = inbox.poll()) != null) {
+			enqueue(coroutine);
+		}
+
+		// Coroutines queued by the ones run here wait for the next tick
+		for (int n = Math.min(ready.size(), maxPerTick); n > 0; --n) {
+			coroutine = ready.pollFirst();
+			queued.remove(coroutine);
+			if (coroutine.getState() == Coroutine.State.FINISHED) {
+				continue;
+			}
+			try {
+				coroutine.run();
+			} catch (final Throwable e) {
+				thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+			}
+		}
+
+		// Advertise sleeping before checking the inbox a last time, so a resume either sees it and wakes the poller
+		// or is seen by the check
+		boolean block = false;
+		if (ready.isEmpty()) {
+			sleeping.set(true);
+			block = inbox.isEmpty() && !stopped;
+		}
+		try {
+			poller.poll(this, block);
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			sleeping.set(false);
+		}
+	}
+
+	private void enqueue(final Coroutine coroutine) {
+		if (queued.add(coroutine)) {
+			ready.addLast(coroutine);
+		}
+	}
+}
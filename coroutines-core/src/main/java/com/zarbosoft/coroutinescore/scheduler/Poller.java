@@ -0,0 +1,23 @@
+package com.zarbosoft.coroutinescore.scheduler;
+
+import java.io.IOException;
+
+/**
+ * Waits for I/O readiness for an {@link EventLoop} between ticks.
+ */
+public interface Poller {
+	/**
+	 * Called on the event loop thread.  Resumes the coroutines waiting for events that are ready with
+	 * {@link EventLoop#resume}.
+	 *
+	 * @param loop
+	 * @param block if true, wait until there are events or {@link #wakeup()} is called, otherwise only check
+	 * @throws IOException
+	 */
+	void poll(EventLoop loop, boolean block) throws IOException;
+
+	/**
+	 * Called from any thread to make a blocking poll return, or the next one if none is in progress.
+	 */
+	void wakeup();
+}
@@ -0,0 +1,270 @@
+package com.zarbosoft.coroutinescore.scheduler;
+
+import com.zarbosoft.coroutinescore.Coroutine;
+import com.zarbosoft.coroutinescore.CoroutineCarrierThread;
+import com.zarbosoft.coroutinescore.SuspendableRunnable;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs coroutines on a fixed set of worker threads.  Each worker runs the coroutines it resumed itself newest first,
+ * and idle workers take the oldest coroutines from busy ones.
+ * <p>
+ * A coroutine runs when it's resumed, until it yields or finishes.  It's then left alone until it's resumed again -
+ * typically a coroutine arranges to be resumed by something it's waiting for before yielding.  A coroutine may only
+ * be run by one scheduler at a time.
+ */
+public class Scheduler {
+	/**
+	 * The states of {@link Coroutine#scheduled} - only coroutines that are queued or running aren't IDLE
+	 */
+	private static final int IDLE = 0;
+	private static final int QUEUED = 1;
+	private static final int RUNNING = 2;
+	/**
+	 * Resumed while running, so it's queued again when it yields
+	 */
+	private static final int RESUMED = 3;
+
+	private static final AtomicIntegerFieldUpdater<Coroutine> scheduled =
+			AtomicIntegerFieldUpdater.newUpdater(Coroutine.class, "scheduled");
+
+	private final class Worker extends CoroutineCarrierThread {
+		final ConcurrentLinkedDeque<Coroutine> queue = new ConcurrentLinkedDeque<>();
+		final AtomicBoolean parked = new AtomicBoolean();
+
+		Worker(final String name) {
+			super(null, name);
+		}
+
+		@Override
+		public void run() {
+			work(this);
+		}
+
+		Scheduler getScheduler() {
+			return Scheduler.this;
+		}
+	}
+
+	private final Worker[] workers;
+
+	/**
+	 * Coroutines resumed from outside the workers
+	 */
+	private final ConcurrentLinkedQueue<Coroutine> injected = new ConcurrentLinkedQueue<>();
+
+	private final AtomicInteger idle = new AtomicInteger();
+	private volatile boolean shutdown;
+
+	/**
+	 * @param threads the number of worker threads
+	 */
+	public Scheduler(final int threads) {
+		this(threads, "coroutine-worker");
+	}
+
+	/**
+	 * @param threads the number of worker threads
+	 * @param name    the prefix of the worker thread names
+	 */
+	public Scheduler(final int threads, final String name) {
+		if (threads <= 0) {
+			throw new IllegalArgumentException("threads");
+		}
+		workers = new Worker[threads];
+		for (int i = 0; i < threads; ++i) {
+			workers[i] = new Worker(name + "-" + i);
+			workers[i].setDaemon(true);
+		}
+		for (final Worker worker : workers) {
+			worker.start();
+		}
+	}
+
+	/**
+	 * @return the scheduler whose worker is the current thread, or null
+	 */
+	public static Scheduler current() {
+		final Thread thread = Thread.currentThread();
+		if (thread instanceof Scheduler.Worker) {
+			return ((Scheduler.Worker) thread).getScheduler();
+		}
+		return null;
+	}
+
+	/**
+	 * Creates a coroutine and resumes it.
+	 *
+	 * @param runnable the SuspendableRunnable for the Coroutine.
+	 * @return the new coroutine
+	 */
+	public Coroutine spawn(final SuspendableRunnable runnable) {
+		final Coroutine coroutine = new Coroutine(runnable);
+		resume(coroutine);
+		return coroutine;
+	}
+
+	/**
+	 * Queues a new or suspended coroutine to run on a worker.  Can be called from any thread, including from the
+	 * coroutine itself before it yields.  Resuming a coroutine that's already queued does nothing, and resuming a
+	 * running coroutine makes it run again once it yields.
+	 *
+	 * @param coroutine
+	 */
+	public void resume(final Coroutine coroutine) {
+		while (true) {
+			final int state = coroutine.scheduled;
+			if (state == IDLE) {
+				if (scheduled.compareAndSet(coroutine, IDLE, QUEUED)) {
+					push(coroutine);
+					return;
+				}
+			} else if (state == RUNNING) {
+				if (scheduled.compareAndSet(coroutine, RUNNING, RESUMED)) {
+					return;
+				}
+			} else {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Stops the workers once they run out of queued coroutines.  Suspended coroutines that haven't been resumed are
+	 * abandoned.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		for (final Worker worker : workers) {
+			worker.parked.set(false);
+			LockSupport.unpark(worker);
+		}
+	}
+
+	/**
+	 * @param timeout
+	 * @param unit
+	 * @return true if all workers stopped within the timeout
+	 * @throws InterruptedException
+	 */
+	public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (final Worker worker : workers) {
+			final long remaining = deadline - System.nanoTime();
+			if (remaining > 0) {
+				TimeUnit.NANOSECONDS.timedJoin(worker, remaining);
+			}
+			if (worker.isAlive()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void push(final Coroutine coroutine) {
+		final Thread thread = Thread.currentThread();
+		if (thread instanceof Scheduler.Worker && ((Scheduler.Worker) thread).getScheduler() == this) {
+			((Scheduler.Worker) thread).queue.addLast(coroutine);
+		} else {
+			injected.add(coroutine);
+		}
+		if (idle.get() > 0) {
+			wakeOne();
+		}
+	}
+
+	private void wakeOne() {
+		for (final Worker worker : workers) {
+			if (worker.parked.compareAndSet(true, false)) {
+				idle.decrementAndGet();
+				LockSupport.unpark(worker);
+				return;
+			}
+		}
+	}
+
+	private void work(final Worker self) {
+		while (true) {
+			final Coroutine coroutine = next(self);
+			if (coroutine != null) {
+				run(coroutine);
+				continue;
+			}
+			if (shutdown) {
+				return;
+			}
+
+			// Advertise being idle before checking for work a last time, so a push either sees this worker idle
+			// or is seen by the check
+			self.parked.set(true);
+			idle.incrementAndGet();
+			final Coroutine late = next(self);
+			if (late != null) {
+				if (self.parked.compareAndSet(true, false)) {
+					idle.decrementAndGet();
+				}
+				run(late);
+				continue;
+			}
+			while (self.parked.get() && !shutdown) {
+				LockSupport.park(this);
+			}
+			if (self.parked.compareAndSet(true, false)) {
+				idle.decrementAndGet();
+			}
+		}
+	}
+
+	private Coroutine next(final Worker self) {
+		Coroutine coroutine = self.queue.pollLast();
+		if (coroutine != null) {
+			return coroutine;
+		}
+		coroutine = injected.poll();
+		if (coroutine != null) {
+			return coroutine;
+		}
+		final int start = ThreadLocalRandom.current().nextInt(workers.length);
+		for (int i = 0; i < workers.length; ++i) {
+			final Worker victim = workers[(start + i) % workers.length];
+			if (victim == self) {
+				continue;
+			}
+			coroutine = victim.queue.pollFirst();
+			if (coroutine != null) {
+				return coroutine;
+			}
+		}
+		return null;
+	}
+
+	private void run(final Coroutine coroutine) {
+		scheduled.compareAndSet(coroutine, QUEUED, RUNNING);
+		try {
+			coroutine.run();
+		} catch (final Throwable e) {
+			final Thread thread = Thread.currentThread();
+			thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+		}
+		final boolean finished = coroutine.getState() != Coroutine.State.SUSPENDED;
+		while (true) {
+			final int state = coroutine.scheduled;
+			if (state == RESUMED && !finished) {
+				if (scheduled.compareAndSet(coroutine, RESUMED, QUEUED)) {
+					push(coroutine);
+					return;
+				}
+			} else if (scheduled.compareAndSet(coroutine, state, IDLE)) {
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package com.zarbosoft.coroutinescore.scheduler;
+
+import com.zarbosoft.coroutinescore.Coroutine;
+import com.zarbosoft.coroutinescore.SuspendExecution;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+
+/**
+ * Resumes coroutines waiting for NIO channels, using a {@link Selector}.
+ */
+public class SelectorPoller implements Poller {
+	private final Selector selector;
+
+	public SelectorPoller() throws IOException {
+		this(Selector.open());
+	}
+
+	public SelectorPoller(final Selector selector) {
+		this.selector = selector;
+	}
+
+	public Selector getSelector() {
+		return selector;
+	}
+
+	/**
+	 * Suspends the running coroutine until the channel is ready.  Call from a coroutine running on the event loop
+	 * using this poller.
+	 *
+	 * @param channel a channel in non-blocking mode
+	 * @param ops     the {@link SelectionKey} operations to wait for
+	 * @throws SuspendExecution
+	 * @throws IOException
+	 */
+	public void await(final SelectableChannel channel, final int ops) throws SuspendExecution, IOException {
+		final Coroutine coroutine = Coroutine.getActiveCoroutine();
+		final SelectionKey key = channel.keyFor(selector);
+		if (key == null) {
+			channel.register(selector, ops, coroutine);
+		} else {
+			key.interestOps(ops);
+			key.attach(coroutine);
+		}
+		Coroutine.yield();
+	}
+
+	@Override
+	public void poll(final EventLoop loop, final boolean block) throws IOException {
+		if (block) {
+			selector.select();
+		} else {
+			selector.selectNow();
+		}
+		final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		while (keys.hasNext()) {
+			final SelectionKey key = keys.next();
+			keys.remove();
+			if (!key.isValid()) {
+				continue;
+			}
+			// Only the coroutine waiting now is resumed, until it waits again
+			key.interestOps(0);
+			final Coroutine coroutine = (Coroutine) key.attachment();
+			key.attach(null);
+			if (coroutine != null) {
+				loop.resume(coroutine);
+			}
+		}
+	}
+
+	@Override
+	public void wakeup() {
+		selector.wakeup();
+	}
+}
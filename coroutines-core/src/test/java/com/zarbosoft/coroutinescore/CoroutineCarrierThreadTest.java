@@ -0,0 +1,66 @@
+package com.zarbosoft.coroutinescore;
+
+import com.zarbosoft.coroutinescore.instrument.Stack;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class CoroutineCarrierThreadTest {
+	@Test
+	public void testCarrier() throws Throwable {
+		final StringBuilder out = new StringBuilder();
+		final Throwable[] error = new Throwable[1];
+		final Coroutine[] seen = new Coroutine[1];
+		final Coroutine[] c = new Coroutine[1];
+		final CoroutineCarrierThread thread = new CoroutineCarrierThread(() -> {
+			try {
+				c[0] = new Coroutine(() -> {
+					final String s = "a";
+					seen[0] = Coroutine.getActiveCoroutine();
+					Coroutine.yield();
+					out.append(s);
+				});
+				c[0].run();
+				assertSame(c[0], seen[0]);
+				assertNull(((CoroutineCarrierThread) Thread.currentThread()).stack);
+				c[0].run();
+				assertEquals(Coroutine.State.FINISHED, c[0].getState());
+			} catch (final Throwable e) {
+				error[0] = e;
+			}
+		});
+		thread.start();
+		thread.join();
+		if (error[0] != null) {
+			throw error[0];
+		}
+		assertEquals("a", out.toString());
+	}
+
+	@Test
+	public void testResumeOnOtherThreads() throws Exception {
+		final StringBuilder out = new StringBuilder();
+		final Coroutine c = new Coroutine(() -> {
+			for (int i = 0; i < 3; ++i) {
+				out.append(i);
+				Coroutine.yield();
+			}
+		});
+		final ExecutorService carrier = Executors.newSingleThreadExecutor(CoroutineCarrierThread::new);
+		carrier.submit(c).get();
+		c.run();
+		assertNull(Stack.getStack());
+		carrier.submit(c).get();
+		c.run();
+		carrier.shutdown();
+		carrier.awaitTermination(1, TimeUnit.SECONDS);
+		assertEquals(Coroutine.State.FINISHED, c.getState());
+		assertEquals("012", out.toString());
+	}
+}
@@ -0,0 +1,63 @@
+package com.zarbosoft.coroutinescore;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class CoroutinePoolTest {
+	@Test
+	public void testReuse() {
+		final CoroutinePool pool = new CoroutinePool(1);
+		final StringBuilder out = new StringBuilder();
+		final Coroutine first = pool.get(() -> {
+			final String s = "a";
+			Coroutine.yield();
+			out.append(s);
+		});
+		first.run();
+		first.run();
+		assertEquals(Coroutine.State.FINISHED, first.getState());
+		pool.release(first);
+		assertEquals(1, pool.getIdle());
+		assertNull(first.getRunnable());
+
+		final Coroutine second = pool.get(() -> {
+			final String s = "b";
+			Coroutine.yield();
+			out.append(s);
+		});
+		assertSame(first, second);
+		assertEquals(Coroutine.State.NEW, second.getState());
+		second.run();
+		assertEquals(Coroutine.State.SUSPENDED, second.getState());
+		second.run();
+		assertEquals(Coroutine.State.FINISHED, second.getState());
+		assertEquals("ab", out.toString());
+	}
+
+	@Test
+	public void testMaxIdle() {
+		final CoroutinePool pool = new CoroutinePool(1);
+		final Coroutine a = pool.get(() -> {
+		});
+		final Coroutine b = pool.get(() -> {
+		});
+		assertNotSame(a, b);
+		a.run();
+		b.run();
+		pool.release(a);
+		pool.release(b);
+		assertEquals(1, pool.getIdle());
+	}
+
+	@Test(expected = Coroutine.Error.class)
+	public void testReleaseSuspended() {
+		final CoroutinePool pool = new CoroutinePool(1);
+		final Coroutine c = pool.get(() -> Coroutine.yield());
+		c.run();
+		pool.release(c);
+	}
+}
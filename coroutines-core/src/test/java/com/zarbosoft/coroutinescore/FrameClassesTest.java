@@ -0,0 +1,87 @@
+package com.zarbosoft.coroutinescore;
+
+import com.zarbosoft.coroutinescore.instrument.Stack;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Values of every type surviving a suspension, which are saved in a generated frame object when instrumented with
+ * frameclasses.
+ */
+public class FrameClassesTest {
+	private static String mixed(final StringBuilder out) throws SuspendExecution {
+		final boolean z = true;
+		final byte b = -3;
+		final short s = -300;
+		final char c = 'q';
+		final int i = 70000;
+		final float f = 1.5f;
+		final long l = 1L << 40;
+		final double d = -2.25;
+		final int[] a = {4, 5};
+		final String string = "x";
+		String nothing = null;
+		out.append(string.length() + a[1]);
+		Coroutine.yield();
+		nothing = nothing == null ? "null" : nothing;
+		return "" + z + b + s + c + i + f + l + d + a[0] + a[1] + string + nothing;
+	}
+
+	private static int sum(final int depth) throws SuspendExecution {
+		if (depth == 0) {
+			Coroutine.yield();
+			return 0;
+		}
+		// Keeps depth on the operand stack across the call
+		return depth + sum(depth - 1);
+	}
+
+	static boolean hasFrameClasses() {
+		try {
+			Class.forName(FrameClassesTest.class.getName() + "$$Frame1");
+			return true;
+		} catch (final ClassNotFoundException e) {
+			return false;
+		}
+	}
+
+	@Test
+	public void testTypes() {
+		final StringBuilder out = new StringBuilder();
+		final Coroutine co = new Coroutine(() -> out.append(mixed(out)));
+		co.run();
+		co.run();
+		assertEquals(Coroutine.State.FINISHED, co.getState());
+		assertEquals("6true-3-300q700001.51099511627776-2.2545xnull", out.toString());
+	}
+
+	@Test
+	public void testOperandStack() {
+		final int[] result = new int[1];
+		final Coroutine co = new Coroutine(() -> result[0] = sum(10));
+		co.run();
+		co.run();
+		assertEquals(55, result[0]);
+	}
+
+	@Test
+	public void testFrameSaved() throws Exception {
+		assumeTrue(hasFrameClasses());
+		final Coroutine co = new Coroutine(() -> mixed(new StringBuilder()));
+		co.run();
+		final Field stackField = Coroutine.class.getDeclaredField("stack");
+		stackField.setAccessible(true);
+		final Stack stack = (Stack) stackField.get(co);
+		boolean found = false;
+		for (final Object o : stack.dataObject) {
+			found |= o != null && o.getClass().getName().startsWith(FrameClassesTest.class.getName() + "$$Frame");
+		}
+		assertTrue(found);
+		co.run();
+	}
+}
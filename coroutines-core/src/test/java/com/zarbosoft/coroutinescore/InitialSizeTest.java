@@ -32,11 +32,41 @@ public class InitialSizeTest implements SuspendableRunnable {
 		testWithSize(3);
 	}
 
+	@Test
+	public void testCompact() {
+		final Coroutine c = new Coroutine(this, 1);
+		c.run();
+		c.compact();
+		assertTrue(getStackSize(c) > 10);
+		c.run();
+		assertEquals(Coroutine.State.FINISHED, c.getState());
+		c.compact();
+		assertEquals(1, getStackSize(c));
+	}
+
+	@Test
+	public void testShrink() {
+		final Coroutine c = new Coroutine(() -> {
+			assertEquals(3628800, factorial(10));
+			Coroutine.yield();
+		}, 1);
+		c.run();
+		final int peak = getStackSize(c);
+		assertTrue(peak > 10);
+		c.run();
+		assertEquals(Coroutine.State.SUSPENDED, c.getState());
+		assertTrue(getStackSize(c) < peak);
+		c.run();
+		assertEquals(Coroutine.State.FINISHED, c.getState());
+	}
+
 	private void testWithSize(final int stackSize) {
 		final Coroutine c = new Coroutine(this, stackSize);
-		assertEquals(getStackSize(c), stackSize);
+		// The stack is allocated when the coroutine first suspends
+		assertEquals(0, getStackSize(c));
 		c.run();
 		assertEquals(Coroutine.State.SUSPENDED, c.getState());
+		assertTrue(getStackSize(c) >= stackSize);
 		c.run();
 		assertEquals(Coroutine.State.FINISHED, c.getState());
 		assertTrue(getStackSize(c) > 10);
@@ -59,6 +89,9 @@ public class InitialSizeTest implements SuspendableRunnable {
 			final Field stackField = Coroutine.class.getDeclaredField("stack");
 			stackField.setAccessible(true);
 			final Object stack = stackField.get(c);
+			if (stack == null) {
+				return 0;
+			}
 			final Field dataObjectField = Stack.class.getDeclaredField("dataObject");
 			dataObjectField.setAccessible(true);
 			final Object[] dataObject = (Object[]) dataObjectField.get(stack);
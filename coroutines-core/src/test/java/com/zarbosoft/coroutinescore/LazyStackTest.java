@@ -0,0 +1,78 @@
+package com.zarbosoft.coroutinescore;
+
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class LazyStackTest {
+	@Test
+	public void testNoSuspension() {
+		final Coroutine[] seen = new Coroutine[1];
+		final Coroutine c = new Coroutine(() -> seen[0] = Coroutine.getActiveCoroutine());
+		c.run();
+		assertEquals(Coroutine.State.FINISHED, c.getState());
+		assertSame(c, seen[0]);
+		assertNull(getStack(c));
+	}
+
+	@Test
+	public void testScratchReused() {
+		final Coroutine a = new Coroutine(() -> {
+			final String s = "a";
+			Coroutine.yield();
+			assertEquals("a", s);
+		});
+		final Coroutine warm = new Coroutine(() -> {
+		});
+		warm.run();
+		a.run();
+		final Object stack = getStack(a);
+		assertNotNull(stack);
+
+		// Another coroutine suspending doesn't share the stack a took
+		final Coroutine b = new Coroutine(() -> Coroutine.yield());
+		b.run();
+		assertNotSame(stack, getStack(b));
+		a.run();
+		assertEquals(Coroutine.State.FINISHED, a.getState());
+		b.run();
+		assertEquals(Coroutine.State.FINISHED, b.getState());
+	}
+
+	@Test
+	public void testNested() {
+		final StringBuilder out = new StringBuilder();
+		final Coroutine outer = new Coroutine(() -> {
+			final Coroutine inner = new Coroutine(() -> {
+				out.append("i");
+				Coroutine.yield();
+				out.append("j");
+			});
+			inner.run();
+			out.append("o");
+			Coroutine.yield();
+			inner.run();
+			out.append("p");
+		});
+		outer.run();
+		outer.run();
+		assertEquals(Coroutine.State.FINISHED, outer.getState());
+		assertEquals("iojp", out.toString());
+	}
+
+	private Object getStack(final Coroutine c) {
+		try {
+			final Field stackField = Coroutine.class.getDeclaredField("stack");
+			stackField.setAccessible(true);
+			return stackField.get(c);
+		} catch (final Throwable ex) {
+			throw new AssertionError(ex);
+		}
+	}
+}
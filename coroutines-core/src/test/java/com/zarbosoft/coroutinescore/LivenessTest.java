@@ -0,0 +1,86 @@
+package com.zarbosoft.coroutinescore;
+
+import com.zarbosoft.coroutinescore.instrument.Stack;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class LivenessTest {
+
+	private static class Marker {
+		@Override
+		public String toString() {
+			return "marker";
+		}
+	}
+
+	private static String use(final Object value) {
+		return value.toString();
+	}
+
+	@Test
+	public void testDeadLocalNotSaved() {
+		final StringBuilder out = new StringBuilder();
+		final Coroutine c = new Coroutine(new SuspendableRunnable() {
+			@Override
+			public void run() throws SuspendExecution {
+				final Object dead = new Marker();
+				final String kept = use(dead);
+				Coroutine.yield();
+				out.append(kept);
+			}
+		});
+		c.run();
+		assertEquals(Coroutine.State.SUSPENDED, c.getState());
+		for (final Object o : getDataObject(c)) {
+			assertFalse(o instanceof Marker);
+		}
+		c.run();
+		assertEquals(Coroutine.State.FINISHED, c.getState());
+		assertEquals("marker", out.toString());
+	}
+
+	@Test
+	public void testLiveAcrossLoop() {
+		final StringBuilder out = new StringBuilder();
+		final Coroutine c = new Coroutine(new SuspendableRunnable() {
+			@Override
+			public void run() throws SuspendExecution {
+				int sum = 0;
+				String text = "";
+				int late;
+				for (int i = 0; i < 3; ++i) {
+					Coroutine.yield();
+					sum += i;
+					text = text + i;
+				}
+				late = sum * 2;
+				Coroutine.yield();
+				out.append(text).append(' ').append(sum).append(' ').append(late);
+			}
+		});
+		for (int i = 0; i < 4; ++i) {
+			c.run();
+			assertEquals(Coroutine.State.SUSPENDED, c.getState());
+		}
+		c.run();
+		assertEquals(Coroutine.State.FINISHED, c.getState());
+		assertEquals("012 3 6", out.toString());
+	}
+
+	private Object[] getDataObject(final Coroutine c) {
+		try {
+			final Field stackField = Coroutine.class.getDeclaredField("stack");
+			stackField.setAccessible(true);
+			final Object stack = stackField.get(c);
+			final Field dataObjectField = Stack.class.getDeclaredField("dataObject");
+			dataObjectField.setAccessible(true);
+			return (Object[]) dataObjectField.get(stack);
+		} catch (final Throwable ex) {
+			throw new AssertionError(ex);
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package com.zarbosoft.coroutinescore;
+
+import com.zarbosoft.coroutinescore.instrument.OffHeapArena;
+import com.zarbosoft.coroutinescore.instrument.Stack;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class OffHeapStackTest {
+	private static void descend(final StringBuilder out, final int depth) throws SuspendExecution {
+		if (depth == 0) {
+			Coroutine.yield();
+			Coroutine.yield();
+			return;
+		}
+		final long l = depth * 10000000000L;
+		final double d = depth / 4.0;
+		final int i = -depth;
+		final float f = depth / 8.0f;
+		final String s = Integer.toString(depth);
+		descend(out, depth - 1);
+		if (l != depth * 10000000000L || d != depth / 4.0 || i != -depth || f != depth / 8.0f || !s.equals(
+				Integer.toString(depth))) {
+			out.append("x").append(depth);
+		}
+	}
+
+	@Test
+	public void testParked() {
+		final StringBuilder out = new StringBuilder();
+		final Coroutine a =
+				new Coroutine(() -> descend(out, 40), Coroutine.DEFAULT_STACK_SIZE, Coroutine.StackStrategy.OFF_HEAP);
+		final Coroutine b =
+				new Coroutine(() -> descend(out, 3), Coroutine.DEFAULT_STACK_SIZE, Coroutine.StackStrategy.OFF_HEAP);
+		a.run();
+		assertNull(getStack(a).dataLong);
+		assertNull(getStack(a).dataInt);
+		assertNotNull(getStack(a).dataObject);
+		b.run();
+		a.run();
+		b.run();
+		a.run();
+		b.run();
+		assertEquals(Coroutine.State.FINISHED, a.getState());
+		assertEquals(Coroutine.State.FINISHED, b.getState());
+		assertEquals("", out.toString());
+	}
+
+	@Test
+	public void testArraysReused() {
+		final long[][] seen = new long[2][];
+		final Coroutine a = new Coroutine(() -> {
+			final long l = 3;
+			Coroutine.yield();
+			seen[1] = Stack.getStack().dataLong;
+			assertEquals(3, l);
+		}, Coroutine.DEFAULT_STACK_SIZE, Coroutine.StackStrategy.OFF_HEAP);
+		final Coroutine b = new Coroutine(() -> {
+			final long l = 4;
+			seen[0] = Stack.getStack().dataLong;
+			Coroutine.yield();
+			assertEquals(4, l);
+		}, Coroutine.DEFAULT_STACK_SIZE, Coroutine.StackStrategy.OFF_HEAP);
+		a.run();
+		b.run();
+
+		// a resumes with the arrays b left when it suspended
+		a.run();
+		assertSame(seen[0], seen[1]);
+		b.run();
+		assertEquals(Coroutine.State.FINISHED, a.getState());
+		assertEquals(Coroutine.State.FINISHED, b.getState());
+	}
+
+	@Test
+	public void testRegionsReused() {
+		final Coroutine[] coroutines = new Coroutine[5000];
+		int slabs = 0;
+		for (int round = 0; round < 2; ++round) {
+			for (int i = 0; i < coroutines.length; ++i) {
+				coroutines[i] = new Coroutine(
+						() -> descend(new StringBuilder(), 10),
+						Coroutine.DEFAULT_STACK_SIZE,
+						Coroutine.StackStrategy.OFF_HEAP
+				);
+				coroutines[i].run();
+			}
+			if (round == 0) {
+				slabs = OffHeapArena.getSlabs();
+			} else {
+				// The second round parks in the regions the first returned
+				assertEquals(slabs, OffHeapArena.getSlabs());
+			}
+			for (final Coroutine c : coroutines) {
+				c.run();
+				c.run();
+				assertEquals(Coroutine.State.FINISHED, c.getState());
+			}
+		}
+	}
+
+	@Test
+	public void testCloseAbandoned() {
+		final Coroutine[] coroutines = new Coroutine[5000];
+		int slabs = 0;
+		for (int round = 0; round < 2; ++round) {
+			for (int i = 0; i < coroutines.length; ++i) {
+				coroutines[i] = new Coroutine(
+						() -> descend(new StringBuilder(), 10),
+						Coroutine.DEFAULT_STACK_SIZE,
+						Coroutine.StackStrategy.OFF_HEAP
+				);
+				coroutines[i].run();
+			}
+			if (round == 0) {
+				slabs = OffHeapArena.getSlabs();
+			} else {
+				// The second round parks in the regions the closed coroutines returned
+				assertEquals(slabs, OffHeapArena.getSlabs());
+			}
+			for (final Coroutine c : coroutines) {
+				c.close();
+				assertEquals(Coroutine.State.FINISHED, c.getState());
+				assertNull(getStack(c));
+			}
+		}
+	}
+
+	static class Numeric implements SuspendableRunnable, Serializable {
+		private static final long serialVersionUID = 1L;
+		int failures;
+
+		@Override
+		public void run() throws SuspendExecution {
+			final long l = 10000000000L;
+			final double d = 0.25;
+			final int i = -7;
+			Coroutine.yield();
+			if (l != 10000000000L || d != 0.25 || i != -7) {
+				failures += 1;
+			}
+		}
+	}
+
+	@Test
+	public void testSerializeParked() throws IOException, ClassNotFoundException {
+		final Numeric numeric = new Numeric();
+		final Coroutine coroutine =
+				new Coroutine(numeric, Coroutine.DEFAULT_STACK_SIZE, Coroutine.StackStrategy.OFF_HEAP);
+		coroutine.run();
+
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		{
+			final ObjectOutputStream oos = new ObjectOutputStream(baos);
+			oos.writeObject(coroutine);
+			oos.close();
+		}
+
+		// Writing doesn't unpark the original
+		assertNull(getStack(coroutine).dataLong);
+		assertNull(getStack(coroutine).dataInt);
+
+		final Coroutine coroutine2;
+		{
+			final ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()));
+			coroutine2 = (Coroutine) ois.readObject();
+		}
+
+		coroutine.run();
+		assertEquals(Coroutine.State.FINISHED, coroutine.getState());
+		assertEquals(0, numeric.failures);
+
+		coroutine2.run();
+		assertEquals(Coroutine.State.FINISHED, coroutine2.getState());
+		assertEquals(0, ((Numeric) coroutine2.getRunnable()).failures);
+	}
+
+	private static Stack getStack(final Coroutine c) {
+		try {
+			final Field stackField = Coroutine.class.getDeclaredField("stack");
+			stackField.setAccessible(true);
+			return (Stack) stackField.get(c);
+		} catch (final Throwable ex) {
+			throw new AssertionError(ex);
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package com.zarbosoft.coroutinescore;
+
+import com.zarbosoft.coroutinescore.instrument.Stack;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class ParameterTest implements SuspendableRunnable {
+
+	private final StringBuilder out = new StringBuilder();
+
+	@Test
+	public void testParameters() {
+		final Coroutine c = new Coroutine(this);
+		for (int i = 0; i < 5; ++i) {
+			c.run();
+			assertEquals(Coroutine.State.SUSPENDED, c.getState());
+		}
+		c.run();
+		assertEquals(Coroutine.State.FINISHED, c.getState());
+		assertEquals("a 1 2.5 x 3 | b 2 4 | 10 ab 11", out.toString());
+	}
+
+	@Test
+	public void testRepassedNotSaved() {
+		// The arena's slabs start out empty.  The caller saves the arguments it passes again on resume, so each
+		// parameter the callee doesn't reassign is saved once, by the caller.
+		final Coroutine c = new Coroutine(() -> {
+			unchanged("a", 1, 2.5, 'x', 3L);
+			reassigned("a", 1, 2);
+		}, new StackArena(64, 1));
+
+		c.run();
+		assertEquals(Coroutine.State.SUSPENDED, c.getState());
+		final List<Object> unchanged = saved(c);
+		assertEquals(1, countSame(unchanged, "a"));
+		assertEquals(1, count(unchanged, 1));
+		assertEquals(1, count(unchanged, (int) 'x'));
+		assertEquals(1, count(unchanged, 3L));
+		assertEquals(1, count(unchanged, 2.5) + count(unchanged, Double.doubleToRawLongBits(2.5)));
+
+		// Reassigned parameters are saved by the callee as well
+		c.run();
+		assertEquals(Coroutine.State.SUSPENDED, c.getState());
+		final List<Object> reassigned = saved(c);
+		assertEquals(1, countSame(reassigned, "b"));
+		assertEquals(2, count(reassigned, 1));
+		assertEquals(2, count(reassigned, 2L));
+
+		c.run();
+		c.run();
+		assertEquals(Coroutine.State.FINISHED, c.getState());
+	}
+
+	private static int count(final List<Object> values, final Object value) {
+		int out = 0;
+		for (final Object o : values) {
+			if (value.equals(o)) {
+				out += 1;
+			}
+		}
+		return out;
+	}
+
+	private static int countSame(final List<Object> values, final Object value) {
+		int out = 0;
+		for (final Object o : values) {
+			if (o == value) {
+				out += 1;
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * @param c a suspended coroutine
+	 * @return the values in its stack's lanes, with generated frames replaced by their fields
+	 */
+	private static List<Object> saved(final Coroutine c) {
+		final List<Object> out = new ArrayList<>();
+		try {
+			final Field stackField = Coroutine.class.getDeclaredField("stack");
+			stackField.setAccessible(true);
+			final Stack stack = (Stack) stackField.get(c);
+			for (final long l : stack.dataLong) {
+				out.add(l);
+			}
+			for (final int i : stack.dataInt) {
+				out.add(i);
+			}
+			for (final Object o : stack.dataObject) {
+				if (o == null || !o.getClass().getName().contains("$$Frame")) {
+					out.add(o);
+					continue;
+				}
+				for (final Field field : o.getClass().getDeclaredFields()) {
+					if (Modifier.isStatic(field.getModifiers())) {
+						continue;
+					}
+					field.setAccessible(true);
+					out.add(field.get(o));
+				}
+			}
+		} catch (final ReflectiveOperationException ex) {
+			throw new AssertionError(ex);
+		}
+		return out;
+	}
+
+	@Override
+	public void run() throws SuspendExecution {
+		out.append(unchanged("a", 1, 2.5, 'x', 3L));
+		out.append(" | ");
+		out.append(reassigned("a", 1, 2));
+		out.append(" | ");
+		out.append(nested(10, "a"));
+	}
+
+	private String unchanged(final String s, final int i, final double d, final char c, final long l)
+			throws SuspendExecution {
+		Coroutine.yield();
+		return s + " " + i + " " + d + " " + c + " " + l;
+	}
+
+	private String reassigned(String s, int i, long l) throws SuspendExecution {
+		s = "b";
+		Coroutine.yield();
+		i++;
+		Coroutine.yield();
+		l *= i;
+		return s + " " + i + " " + l;
+	}
+
+	private static String nested(final int i, final String s) throws SuspendExecution {
+		return i + " " + inner(s + "b", i + 1);
+	}
+
+	private static String inner(final String s, final int i) throws SuspendExecution {
+		Coroutine.yield();
+		Coroutine.yield();
+		return s + " " + i;
+	}
+}
@@ -0,0 +1,96 @@
+package com.zarbosoft.coroutinescore;
+
+import com.zarbosoft.coroutinescore.instrument.Stack;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class SegmentedStackTest implements SuspendableRunnable {
+
+	private final StringBuilder out = new StringBuilder();
+
+	@Test
+	public void testDeep() {
+		final Coroutine c = new Coroutine(this, 1, Coroutine.StackStrategy.SEGMENTED);
+		int suspensions = 0;
+		do {
+			c.run();
+			suspensions += 1;
+		} while (c.getState() == Coroutine.State.SUSPENDED);
+		assertEquals(1 + 21 + 6 + 1, suspensions);
+		assertEquals("210 210.0 20 | 15 15.0 5", out.toString());
+		final Stack stack = getStack(c);
+		for (final Object o : stack.dataObject) {
+			assertNull(o);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSegmentTooLarge() {
+		new Stack(null, 1 << 24, Coroutine.StackStrategy.SEGMENTED);
+	}
+
+	@Test
+	public void testRelocation() {
+		final Stack stack = new Stack(null, 4, Coroutine.StackStrategy.SEGMENTED);
+		stack.nextMethodEntry();
+		stack.pushMethodAndReserveSpace(1, 0, 0, 3);
+		Stack.push("a", stack, 2);
+		final Object[] first = stack.dataObject;
+		stack.nextMethodEntry();
+		stack.pushMethodAndReserveSpace(1, 0, 0, 3);
+		Stack.push("b", stack, 0);
+		assertEquals(8, stack.dataObject.length);
+		assertEquals(0, stack.curMethodObjSP);
+
+		stack.resumeStack();
+		stack.nextMethodEntry();
+		assertEquals(4, stack.dataObject.length);
+		assertEquals("a", stack.getObject(2));
+		stack.nextMethodEntry();
+		assertEquals("b", stack.getObject(0));
+		stack.popMethod();
+		stack.popMethod();
+		assertSame(first, stack.dataObject);
+		assertNull(stack.dataObject[2]);
+	}
+
+	@Override
+	public void run() throws SuspendExecution {
+		Coroutine.yield();
+		out.append(sum(20, new Object()));
+		out.append(" | ");
+		out.append(sum(5, new Object()));
+	}
+
+	private String sum(final int depth, final Object marker) throws SuspendExecution {
+		if (depth == 0) {
+			Coroutine.yield();
+			return "0 0.0 0";
+		}
+		final long l = depth;
+		final double d = depth;
+		final String inner = sum(depth - 1, new Object());
+		Coroutine.yield();
+		final String[] parts = inner.split(" ");
+		return (Long.parseLong(parts[0]) + l) +
+				" " +
+				(Double.parseDouble(parts[1]) + d) +
+				" " +
+				(Integer.parseInt(parts[2]) + (marker != null ? 1 : 0));
+	}
+
+	private Stack getStack(final Coroutine c) {
+		try {
+			final Field stackField = Coroutine.class.getDeclaredField("stack");
+			stackField.setAccessible(true);
+			return (Stack) stackField.get(c);
+		} catch (final Throwable ex) {
+			throw new AssertionError(ex);
+		}
+	}
+}
@@ -56,4 +56,27 @@ public class SerializeTest {
 		assertThat(((TestCoroutineProto) coroutine2.runnable).value, equalTo(2));
 		assertThat(coroutine2.getState(), equalTo(FINISHED));
 	}
+
+	@Test
+	public void testSerializeWithProfile() throws IOException, ClassNotFoundException {
+		final StackSizeProfile profile = new StackSizeProfile();
+		final Coroutine coroutine = new Coroutine(new TestCoroutineProto(), profile);
+		coroutine.run();
+
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		{
+			final ObjectOutputStream oos = new ObjectOutputStream(baos);
+			oos.writeObject(coroutine);
+			oos.close();
+		}
+		final Coroutine coroutine2;
+		{
+			final ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()));
+			coroutine2 = (Coroutine) ois.readObject();
+		}
+
+		coroutine2.run();
+		assertThat(((TestCoroutineProto) coroutine2.runnable).value, equalTo(2));
+		assertThat(coroutine2.getState(), equalTo(FINISHED));
+	}
 }
@@ -0,0 +1,114 @@
+package com.zarbosoft.coroutinescore;
+
+import com.zarbosoft.coroutinescore.instrument.Stack;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class StackArenaTest {
+	private static void descend(final StringBuilder out, final int depth) throws SuspendExecution {
+		if (depth == 0) {
+			Coroutine.yield();
+			return;
+		}
+		final long l = depth * 1000L;
+		final int i = depth;
+		final String s = Integer.toString(depth);
+		descend(out, depth - 1);
+		out.append(l / 1000 == i && s.equals(Integer.toString(i)) ? "" : "x" + depth);
+	}
+
+	@Test
+	public void testShared() {
+		final StackArena arena = new StackArena(8, 4);
+		final StringBuilder out = new StringBuilder();
+		final Coroutine[] coroutines = new Coroutine[6];
+		for (int i = 0; i < coroutines.length; ++i) {
+			coroutines[i] = new Coroutine(() -> descend(out, 2), arena);
+			coroutines[i].run();
+		}
+		assertEquals(6, arena.getChunks());
+		assertEquals(0, arena.getFree());
+		assertSame(getStack(coroutines[0]).dataLong, getStack(coroutines[3]).dataLong);
+		assertNotSame(getStack(coroutines[0]).dataLong, getStack(coroutines[4]).dataLong);
+		for (final Coroutine c : coroutines) {
+			c.run();
+			assertEquals(Coroutine.State.FINISHED, c.getState());
+			assertNull(getStack(c));
+		}
+		assertEquals("", out.toString());
+		assertEquals(6, arena.getFree());
+
+		// Finished coroutines' chunks are reused
+		final Coroutine again = new Coroutine(() -> descend(out, 2), arena);
+		again.run();
+		assertEquals(6, arena.getChunks());
+		assertEquals(5, arena.getFree());
+		again.run();
+		assertEquals(6, arena.getFree());
+	}
+
+	@Test
+	public void testOutgrowChunk() {
+		final StackArena arena = new StackArena(4, 4);
+		final StringBuilder out = new StringBuilder();
+		final Coroutine neighbor = new Coroutine(() -> descend(out, 1), arena);
+		final Coroutine deep = new Coroutine(() -> descend(out, 50), arena);
+		neighbor.run();
+		deep.run();
+		if (!FrameClassesTest.hasFrameClasses()) {
+			// Frames only use the object lane
+			assertNotSame(getStack(neighbor).dataLong, getStack(deep).dataLong);
+		}
+		assertNotSame(getStack(neighbor).dataObject, getStack(deep).dataObject);
+		deep.run();
+		neighbor.run();
+		assertEquals(Coroutine.State.FINISHED, deep.getState());
+		assertEquals(Coroutine.State.FINISHED, neighbor.getState());
+		assertEquals("", out.toString());
+		assertEquals(2, arena.getFree());
+	}
+
+	@Test
+	public void testCloseAbandoned() {
+		final StackArena arena = new StackArena(8, 4);
+		final StringBuilder out = new StringBuilder();
+		final Coroutine abandoned = new Coroutine(() -> descend(out, 2), arena);
+		abandoned.run();
+		final Object[] slab = getStack(abandoned).dataObject;
+		assertEquals(0, arena.getFree());
+		assertNotNull(slab[0]);
+
+		abandoned.close();
+		assertEquals(Coroutine.State.FINISHED, abandoned.getState());
+		assertNull(getStack(abandoned));
+		assertEquals(1, arena.getFree());
+		for (final Object o : slab) {
+			assertNull(o);
+		}
+
+		// The chunk is reused
+		final Coroutine next = new Coroutine(() -> descend(out, 2), arena);
+		next.run();
+		assertEquals(1, arena.getChunks());
+		next.run();
+		assertEquals("", out.toString());
+		assertEquals(1, arena.getFree());
+	}
+
+	private static Stack getStack(final Coroutine c) {
+		try {
+			final Field stackField = Coroutine.class.getDeclaredField("stack");
+			stackField.setAccessible(true);
+			return (Stack) stackField.get(c);
+		} catch (final Throwable ex) {
+			throw new AssertionError(ex);
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package com.zarbosoft.coroutinescore;
+
+import com.zarbosoft.coroutinescore.instrument.Stack;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Calls between private and static methods of the same class, which pass the stack as a parameter when instrumented
+ * with stackparameter.  The test runs set the coroutinescore.stackparameter property when they use it.
+ */
+public class StackParameterTest {
+	private static final String STACK = "Lcom/zarbosoft/coroutinescore/instrument/Stack;";
+
+	@Retention(RetentionPolicy.RUNTIME)
+	public @interface Marker {
+	}
+
+	private final StringBuilder out = new StringBuilder();
+
+	@Marker
+	private static long sum(final long a, final double b, final int depth) throws SuspendExecution {
+		final long local = a + (long) b;
+		if (depth == 0) {
+			Coroutine.yield();
+			return local;
+		}
+		final int other = depth * 2;
+		final long below = sum(a, b, depth - 1);
+		return below + local + other;
+	}
+
+	private void record(final String prefix, final long value) throws SuspendExecution {
+		final String text = prefix + value;
+		Coroutine.yield();
+		out.append(text);
+	}
+
+	private void varargs(final String... values) throws SuspendExecution {
+		for (final String value : values) {
+			record(value, sum(1, 0.5, 1));
+		}
+	}
+
+	@Test
+	public void testCalls() {
+		final Coroutine c = new Coroutine(() -> record("x", sum(2, 1.5, 3)));
+		int suspensions = 0;
+		do {
+			c.run();
+			suspensions += 1;
+		} while (c.getState() == Coroutine.State.SUSPENDED);
+		assertEquals(3, suspensions);
+		assertEquals("x24", out.toString());
+	}
+
+	@Test
+	public void testVarargs() {
+		final Coroutine c = new Coroutine(() -> varargs("a", "b"));
+		do {
+			c.run();
+		} while (c.getState() == Coroutine.State.SUSPENDED);
+		assertEquals("a4b4", out.toString());
+	}
+
+	@Test
+	public void testReflection() throws Exception {
+		final Method method = StackParameterTest.class.getDeclaredMethod("sum", long.class, double.class, int.class);
+		assertNotNull(method.getAnnotation(Marker.class));
+		method.setAccessible(true);
+		final long[] result = new long[1];
+		final Coroutine c = new Coroutine(() -> {
+			try {
+				result[0] = (Long) method.invoke(null, 2, 1.5, 1);
+			} catch (final ReflectiveOperationException e) {
+				throw new AssertionError(e);
+			}
+		});
+		c.run();
+		assertEquals(Coroutine.State.SUSPENDED, c.getState());
+		c.run();
+		assertEquals(Coroutine.State.FINISHED, c.getState());
+		assertEquals(8, result[0]);
+	}
+
+	@Test
+	public void testOverloads() throws Exception {
+		final boolean stackParameter = Boolean.getBoolean("coroutinescore.stackparameter");
+		final List<String> sumCalls = calls("sum", "(JDI)J");
+		if (!stackParameter) {
+			assertTrue(overloadMissing());
+			assertTrue(sumCalls.contains("sum(JDI)J"));
+			return;
+		}
+
+		final Method overload = StackParameterTest.class.getDeclaredMethod("sum",
+				long.class,
+				double.class,
+				int.class,
+				Stack.class
+		);
+		assertTrue(overload.isSynthetic());
+		assertNull(overload.getAnnotation(Marker.class));
+
+		// The original method is a bridge to the overload
+		assertTrue(sumCalls.contains("sum(JDI" + STACK + ")J"));
+		assertFalse(sumCalls.contains("sum(JDI)J"));
+
+		// Calls within the class go straight to the overloads
+		final List<String> recursion = calls("sum", "(JDI" + STACK + ")J");
+		assertTrue(recursion.contains("sum(JDI" + STACK + ")J"));
+		assertFalse(recursion.contains("sum(JDI)J"));
+		final List<String> varargsCalls = calls("varargs", "([Ljava/lang/String;" + STACK + ")V");
+		assertTrue(varargsCalls.contains("sum(JDI" + STACK + ")J"));
+		assertTrue(varargsCalls.contains("record(Ljava/lang/String;J" + STACK + ")V"));
+		assertFalse(varargsCalls.contains("record(Ljava/lang/String;J)V"));
+	}
+
+	private static boolean overloadMissing() {
+		try {
+			StackParameterTest.class.getDeclaredMethod("sum", long.class, double.class, int.class, Stack.class);
+			return false;
+		} catch (final NoSuchMethodException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * @param name
+	 * @param desc
+	 * @return the name and descriptor of each method of this class the instrumented method calls
+	 * @throws IOException
+	 */
+	private static List<String> calls(final String name, final String desc) throws IOException {
+		final ClassNode cn = new ClassNode();
+		try (InputStream is = StackParameterTest.class.getResourceAsStream("StackParameterTest.class")) {
+			new ClassReader(is).accept(cn, 0);
+		}
+		for (final MethodNode mn : cn.methods) {
+			if (!mn.name.equals(name) || !mn.desc.equals(desc)) {
+				continue;
+			}
+			final List<String> out = new ArrayList<>();
+			for (final AbstractInsnNode node : mn.instructions.toArray()) {
+				if (node instanceof MethodInsnNode && ((MethodInsnNode) node).owner.equals(cn.name)) {
+					out.add(((MethodInsnNode) node).name + ((MethodInsnNode) node).desc);
+				}
+			}
+			return out;
+		}
+		throw new AssertionError("Missing method " + name + desc);
+	}
+}
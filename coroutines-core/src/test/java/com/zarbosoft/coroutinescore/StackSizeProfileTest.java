@@ -0,0 +1,89 @@
+package com.zarbosoft.coroutinescore;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StackSizeProfileTest {
+	public static class Deep implements SuspendableRunnable {
+		@Override
+		public void run() throws SuspendExecution {
+			descend(100);
+		}
+
+		private void descend(final int depth) throws SuspendExecution {
+			if (depth == 0) {
+				Coroutine.yield();
+				return;
+			}
+			final Object kept = new Object();
+			descend(depth - 1);
+			assertTrue(kept != null);
+		}
+	}
+
+	@Test
+	public void testLearn() {
+		final StackSizeProfile profile = new StackSizeProfile();
+		assertEquals(Coroutine.DEFAULT_STACK_SIZE, profile.getStackSize(Deep.class));
+		runToEnd(new Coroutine(new Deep(), profile));
+		final int learnedStack = profile.getStackSize(Deep.class);
+		final int learnedMethod = profile.getMethodSize(Deep.class);
+		assertTrue(learnedStack >= 100);
+		assertTrue(learnedMethod >= 400);
+
+		// A coroutine that starts at the learned size doesn't grow, so the profile stays the same
+		runToEnd(new Coroutine(new Deep(), profile));
+		assertEquals(learnedStack, profile.getStackSize(Deep.class));
+		assertEquals(learnedMethod, profile.getMethodSize(Deep.class));
+	}
+
+	public static class Shallow implements SuspendableRunnable {
+		@Override
+		public void run() throws SuspendExecution {
+			Coroutine.yield();
+		}
+	}
+
+	private static void descendWithoutYield(final int depth) throws SuspendExecution {
+		if (depth == 0) {
+			return;
+		}
+		descendWithoutYield(depth - 1);
+	}
+
+	@Test
+	public void testScratchGrowthNotInherited() {
+		// Grows this thread's scratch stack, since it finishes without suspending
+		runToEnd(new Coroutine(() -> descendWithoutYield(100)));
+		final StackSizeProfile profile = new StackSizeProfile();
+		runToEnd(new Coroutine(new Shallow(), profile));
+		assertEquals(Coroutine.DEFAULT_STACK_SIZE, profile.getStackSize(Shallow.class));
+		assertEquals(0, profile.getMethodSize(Shallow.class));
+	}
+
+	@Test
+	public void testStoreLoad() throws IOException {
+		final StackSizeProfile profile = new StackSizeProfile();
+		profile.record(Deep.class, 128, 512);
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		profile.store(out);
+
+		final StackSizeProfile loaded = new StackSizeProfile();
+		loaded.record(Deep.class, 256, 8);
+		loaded.load(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(256, loaded.getStackSize(Deep.class));
+		assertEquals(512, loaded.getMethodSize(Deep.class));
+	}
+
+	private static void runToEnd(final Coroutine c) {
+		do {
+			c.run();
+		} while (c.getState() == Coroutine.State.SUSPENDED);
+	}
+}
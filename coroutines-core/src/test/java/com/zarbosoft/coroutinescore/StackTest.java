@@ -1,5 +1,6 @@
 package com.zarbosoft.coroutinescore;
 
+import com.zarbosoft.coroutinescore.instrument.Stack;
 import org.hamcrest.number.IsCloseTo;
 import org.junit.Test;
 
@@ -263,4 +264,85 @@ public class StackTest {
 		coroutine.run();
 		assertThat(out[0], equalTo(7));
 	}
+
+	@Test
+	public void testSeparateStackPointers() {
+		final Stack stack = new Stack(null, 4);
+		stack.nextMethodEntry();
+		stack.pushMethodAndReserveSpace(1, 1, 2, 10);
+		Stack.push(3L, stack, 0);
+		Stack.push(4, stack, 0);
+		Stack.push(5f, stack, 1);
+		Stack.push("a", stack, 9);
+		assertThat(stack.dataLong.length, equalTo(4));
+		assertThat(stack.dataInt.length, equalTo(4));
+		assertThat(stack.dataObject.length, equalTo(16));
+
+		stack.nextMethodEntry();
+		stack.pushMethodAndReserveSpace(1, 0, 6, 0);
+		Stack.push(6, stack, 5);
+		assertThat(stack.curMethodSP, equalTo(1));
+		assertThat(stack.curMethodIntSP, equalTo(2));
+		assertThat(stack.curMethodObjSP, equalTo(10));
+		assertThat(stack.dataInt.length, equalTo(8));
+
+		stack.resumeStack();
+		stack.nextMethodEntry();
+		assertThat(stack.getLong(0), equalTo(3L));
+		assertThat(stack.getInt(0), equalTo(4));
+		assertThat(stack.getFloat(1), equalTo(5f));
+		assertThat(stack.getObject(9), equalTo("a"));
+		stack.nextMethodEntry();
+		assertThat(stack.getInt(5), equalTo(6));
+	}
+
+	private static int depth(final int n, final boolean yield) throws SuspendExecution {
+		final int x = n * 3;
+		if (n == 0) {
+			if (yield) {
+				Coroutine.yield();
+			}
+			return x;
+		}
+		return depth(n - 1, yield) + x;
+	}
+
+	@Test
+	public void testFreshCallsAfterResume() {
+		final int[] out = new int[] {-1, -1, -1};
+		final boolean[] resuming = new boolean[] {true};
+		final Coroutine coroutine = new Coroutine(() -> {
+			final int a = depth(3, true);
+			resuming[0] = Stack.getStack().isResuming();
+			final int b = depth(5, false);
+			final int c = depth(1, true);
+			out[0] = a;
+			out[1] = b;
+			out[2] = c;
+		});
+		coroutine.run();
+		coroutine.run();
+		assertThat(resuming[0], equalTo(false));
+		coroutine.run();
+		assertThat(coroutine.getState(), equalTo(Coroutine.State.FINISHED));
+		assertThat(out[0], equalTo(18));
+		assertThat(out[1], equalTo(45));
+		assertThat(out[2], equalTo(3));
+	}
+
+	@Test
+	public void testResuming() {
+		final Stack stack = new Stack(null, 4);
+		assertThat(stack.isResuming(), equalTo(false));
+		stack.enterMethod();
+		stack.pushMethodAndReserveSpace(1, 1, 0, 0);
+		stack.enterMethod();
+		stack.pushMethodAndReserveSpace(2, 0, 1, 0);
+		stack.resumeStack();
+		assertThat(stack.isResuming(), equalTo(true));
+		assertThat(stack.nextMethodEntry(), equalTo(1));
+		assertThat(stack.isResuming(), equalTo(true));
+		assertThat(stack.nextMethodEntry(), equalTo(2));
+		assertThat(stack.isResuming(), equalTo(false));
+	}
 }
@@ -0,0 +1,75 @@
+package com.zarbosoft.coroutinescore;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Calls to suspendable methods outside of coroutines, which run the uninstrumented copy when instrumented with
+ * uninstrumentedcopy.
+ */
+public class UninstrumentedCopyTest {
+	private int calls;
+
+	private static long sum(final long a, final int depth) throws SuspendExecution {
+		if (depth == 0) {
+			return a;
+		}
+		return a + sum(a, depth - 1);
+	}
+
+	private String describe(final String prefix, final double value) throws SuspendExecution {
+		calls += 1;
+		return prefix + sum((long) value, 2);
+	}
+
+	private String suspending() throws SuspendExecution {
+		final String s = describe("b", 2);
+		Coroutine.yield();
+		return s;
+	}
+
+	private static boolean hasCopy() {
+		try {
+			UninstrumentedCopyTest.class.getDeclaredMethod("sum$uninstrumented", long.class, int.class);
+			return true;
+		} catch (final NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	@Test
+	public void testOutside() {
+		assumeTrue(hasCopy());
+		try {
+			assertEquals(9, sum(3, 2));
+			assertEquals("a6", describe("a", 2.5));
+		} catch (final SuspendExecution e) {
+			throw new AssertionError(e);
+		}
+		assertEquals(1, calls);
+	}
+
+	@Test
+	public void testInside() {
+		final String[] result = new String[1];
+		final Coroutine c = new Coroutine(() -> result[0] = suspending());
+		c.run();
+		assertEquals(Coroutine.State.SUSPENDED, c.getState());
+		c.run();
+		assertEquals(Coroutine.State.FINISHED, c.getState());
+		assertEquals("b6", result[0]);
+		assertEquals(1, calls);
+	}
+
+	@Test(expected = Coroutine.Error.class)
+	public void testYieldOutside() {
+		assumeTrue(hasCopy());
+		try {
+			suspending();
+		} catch (final SuspendExecution e) {
+			throw new AssertionError(e);
+		}
+	}
+}
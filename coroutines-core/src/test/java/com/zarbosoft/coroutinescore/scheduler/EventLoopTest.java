@@ -0,0 +1,176 @@
+package com.zarbosoft.coroutinescore.scheduler;
+
+import com.zarbosoft.coroutinescore.Coroutine;
+import com.zarbosoft.coroutinescore.CoroutineCarrierThread;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class EventLoopTest {
+	private static Thread start(final EventLoop loop) {
+		final Thread thread = new CoroutineCarrierThread(loop);
+		thread.start();
+		return thread;
+	}
+
+	@Test
+	public void testDefer() throws Exception {
+		final EventLoop loop = new EventLoop();
+		final StringBuilder out = new StringBuilder();
+		final CountDownLatch done = new CountDownLatch(2);
+		for (final String s : new String[] {"a", "b"}) {
+			loop.spawn(() -> {
+				for (int i = 0; i < 3; ++i) {
+					out.append(s);
+					EventLoop.current().defer();
+				}
+				done.countDown();
+			});
+		}
+		final Thread thread = start(loop);
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		loop.stop();
+		thread.join();
+		assertEquals("ababab", out.toString());
+	}
+
+	@Test
+	public void testResumeFromOtherThread() throws Exception {
+		final EventLoop loop = new EventLoop();
+		final CountDownLatch suspended = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(1);
+		final StringBuilder out = new StringBuilder();
+		final EventLoop[] seen = new EventLoop[1];
+		final Thread thread = start(loop);
+		final Coroutine coroutine = loop.spawn(() -> {
+			final String s = "a";
+			seen[0] = EventLoop.current();
+			// Runs on the loop thread once this has yielded
+			EventLoop.current().spawn(() -> suspended.countDown());
+			Coroutine.yield();
+			out.append(s);
+			done.countDown();
+		});
+		assertTrue(suspended.await(10, TimeUnit.SECONDS));
+		assertEquals(Coroutine.State.SUSPENDED, coroutine.getState());
+		// The loop is parked with nothing to do, the resume has to wake it
+		loop.resume(coroutine);
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals("a", out.toString());
+		assertSame(loop, seen[0]);
+		assertNull(EventLoop.current());
+		loop.stop();
+		thread.join();
+	}
+
+	@Test
+	public void testMaxPerTick() throws Exception {
+		final List<String> events = new ArrayList<>();
+		final EventLoop[] loop = new EventLoop[1];
+		loop[0] = new EventLoop(2, new Poller() {
+			@Override
+			public void poll(final EventLoop loop, final boolean block) {
+				events.add("poll");
+				if (block) {
+					loop.stop();
+				}
+			}
+
+			@Override
+			public void wakeup() {
+			}
+		});
+		for (final String s : new String[] {"a", "b", "c"}) {
+			loop[0].spawn(() -> {
+				events.add(s);
+				EventLoop.current().defer();
+				events.add(s);
+			});
+		}
+		loop[0].run();
+		assertEquals("a,b,poll,c,a,poll,b,c,poll", String.join(",", events));
+	}
+
+	@Test
+	public void testDeferOutsideCoroutine() throws Exception {
+		final List<String> events = new ArrayList<>();
+		final EventLoop loop = new EventLoop(1, new Poller() {
+			@Override
+			public void poll(final EventLoop loop, final boolean block) {
+				events.add("poll " + block);
+				if (events.size() > 1) {
+					loop.stop();
+					return;
+				}
+				// Through reflection so this method isn't instrumented
+				try {
+					EventLoop.class.getMethod("defer").invoke(loop);
+					events.add("deferred");
+				} catch (final InvocationTargetException e) {
+					events.add("failed");
+				} catch (final ReflectiveOperationException e) {
+					throw new AssertionError(e);
+				}
+			}
+
+			@Override
+			public void wakeup() {
+			}
+		});
+		loop.run();
+		// Nothing was queued, so the next tick has nothing to run
+		assertEquals("poll true,failed,poll true", String.join(",", events));
+	}
+
+	@Test
+	public void testSelector() throws Exception {
+		final SelectorPoller poller = new SelectorPoller();
+		final EventLoop loop = new EventLoop(16, poller);
+		final Pipe pipe = Pipe.open();
+		pipe.source().configureBlocking(false);
+		final StringBuilder out = new StringBuilder();
+		final CountDownLatch done = new CountDownLatch(1);
+		loop.spawn(() -> {
+			final ByteBuffer buffer = ByteBuffer.allocate(16);
+			try {
+				while (out.length() < 4) {
+					poller.await(pipe.source(), SelectionKey.OP_READ);
+					pipe.source().read(buffer);
+					buffer.flip();
+					out.append(StandardCharsets.UTF_8.decode(buffer));
+					buffer.clear();
+				}
+			} catch (final IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			done.countDown();
+		});
+		final Thread thread = start(loop);
+		for (final String s : new String[] {"ab", "cd"}) {
+			Thread.sleep(10);
+			pipe.sink().write(ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8)));
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		loop.stop();
+		thread.join();
+		assertEquals("abcd", out.toString());
+		pipe.sink().close();
+		pipe.source().close();
+		poller.getSelector().close();
+	}
+}
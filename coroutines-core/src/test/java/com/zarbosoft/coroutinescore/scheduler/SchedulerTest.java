@@ -0,0 +1,124 @@
+package com.zarbosoft.coroutinescore.scheduler;
+
+import com.zarbosoft.coroutinescore.Coroutine;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SchedulerTest {
+	@Test
+	public void testResumeSelf() throws Exception {
+		final Scheduler scheduler = new Scheduler(4);
+		final int count = 1000;
+		final int steps = 20;
+		final CountDownLatch done = new CountDownLatch(count);
+		final AtomicLong total = new AtomicLong();
+		for (int i = 0; i < count; ++i) {
+			scheduler.spawn(() -> {
+				long sum = 0;
+				for (int j = 0; j < steps; ++j) {
+					sum += j;
+					// Resumed before yielding, so it runs again once it has yielded
+					Scheduler.current().resume(Coroutine.getActiveCoroutine());
+					Coroutine.yield();
+				}
+				total.addAndGet(sum);
+				done.countDown();
+			});
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(count * (steps * (steps - 1) / 2), total.get());
+		scheduler.shutdown();
+		assertTrue(scheduler.awaitTermination(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testResumeFromOtherThread() throws Exception {
+		// A single worker, so the helper only runs once the coroutine has yielded
+		final Scheduler scheduler = new Scheduler(1);
+		final CountDownLatch suspended = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(1);
+		final StringBuilder out = new StringBuilder();
+		final Scheduler[] seen = new Scheduler[1];
+		final Coroutine coroutine = scheduler.spawn(() -> {
+			final String s = "a";
+			seen[0] = Scheduler.current();
+			Scheduler.current().spawn(() -> suspended.countDown());
+			Coroutine.yield();
+			out.append(s);
+			done.countDown();
+		});
+		assertTrue(suspended.await(10, TimeUnit.SECONDS));
+		assertEquals(Coroutine.State.SUSPENDED, coroutine.getState());
+		scheduler.resume(coroutine);
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals("a", out.toString());
+		assertSame(scheduler, seen[0]);
+		assertNull(Scheduler.current());
+		scheduler.shutdown();
+		assertTrue(scheduler.awaitTermination(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testConcurrentResumes() throws Exception {
+		final AtomicReference<Throwable> error = new AtomicReference<>();
+		final Thread.UncaughtExceptionHandler oldHandler = Thread.getDefaultUncaughtExceptionHandler();
+		Thread.setDefaultUncaughtExceptionHandler((thread, e) -> error.set(e));
+		try {
+			concurrentResumes();
+		} finally {
+			Thread.setDefaultUncaughtExceptionHandler(oldHandler);
+		}
+		assertNull(error.get());
+	}
+
+	private void concurrentResumes() throws Exception {
+		final Scheduler scheduler = new Scheduler(4);
+		final AtomicInteger runs = new AtomicInteger();
+		final AtomicInteger overlaps = new AtomicInteger();
+		final AtomicBoolean running = new AtomicBoolean();
+		// A resume is only issued for a ticket and each run hands out one ticket before yielding, so no resume is
+		// merged with another but many land while the coroutine is still running
+		final Semaphore tickets = new Semaphore(1);
+		final Coroutine coroutine = new Coroutine(() -> {
+			while (true) {
+				if (!running.compareAndSet(false, true)) {
+					overlaps.incrementAndGet();
+				}
+				runs.incrementAndGet();
+				running.set(false);
+				tickets.release();
+				Coroutine.yield();
+			}
+		});
+		final Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; ++i) {
+			threads[i] = new Thread(() -> {
+				for (int j = 0; j < 1000; ++j) {
+					tickets.acquireUninterruptibly();
+					scheduler.resume(coroutine);
+				}
+			});
+			threads[i].start();
+		}
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+		scheduler.shutdown();
+		assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+		assertEquals(4000, runs.get());
+		assertEquals(0, overlaps.get());
+		assertEquals(Coroutine.State.SUSPENDED, coroutine.getState());
+	}
+}